@@ -0,0 +1,65 @@
+package com.matheusfig90.benchmarks;
+
+import com.matheusfig90.Application;
+import com.matheusfig90.jobs.DeviceStateReconciliationJob;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Boots the application for benchmarks, against the same H2 in-memory database used by the tests.
+ * The scheduled jobs are off, so they don't run statements and lock rows during the measurements.
+ */
+public final class BenchmarkApplication {
+    public static final long DEVICE_ID = 1L;
+    public static final long USER_ID = 1L;
+
+    // History rows get ids far from the ones generated by the bookings sequence
+    private static final long HISTORY_FIRST_ID = 1_000_000_000L;
+
+    private BenchmarkApplication() {
+    }
+
+    public static ConfigurableApplicationContext start(String databaseName) {
+        return new SpringApplicationBuilder(Application.class)
+                .web(WebApplicationType.NONE)
+                .run(
+                        "--spring.datasource.url=jdbc:h2:mem:" + databaseName + ";DB_CLOSE_DELAY=-1",
+                        "--spring.datasource.driver-class-name=org.h2.Driver",
+                        "--spring.datasource.username=root",
+                        "--spring.datasource.password=",
+                        "--spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+                        "--spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+                        "--spring.jpa.hibernate.ddl-auto=create-drop",
+                        "--spring.jpa.show-sql=false",
+                        "--spring.flyway.enabled=false",
+                        "--app.bookings.partitions.enabled=false",
+                        "--app.bookings.expiry.enabled=false",
+                        "--app.devices.reconciliation.cron=-",
+                        "--app.outbox.relay.enabled=false",
+                        "--app.stats.flush.enabled=false",
+                        "--logging.level.root=WARN"
+                );
+    }
+
+    /**
+     * Creates the benchmark device and user, and {@code historyDepth} returned bookings for the device.
+     */
+    public static void seed(ConfigurableApplicationContext context, int historyDepth) {
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+
+        jdbcTemplate.update("INSERT INTO devices (id, name, version) VALUES (?, 'Benchmark device', 0)", DEVICE_ID);
+        jdbcTemplate.update("INSERT INTO users (id, name) VALUES (?, 'Benchmark user')", USER_ID);
+        jdbcTemplate.update(
+                "INSERT INTO bookings (id, device_id, user_id, booked_at, returned_at, open_device_id) " +
+                        "SELECT ? + X, ?, ?, DATEADD('MINUTE', -2 * X, CURRENT_TIMESTAMP), " +
+                        "DATEADD('MINUTE', -2 * X + 1, CURRENT_TIMESTAMP), NULL " +
+                        "FROM SYSTEM_RANGE(1, ?)",
+                HISTORY_FIRST_ID, DEVICE_ID, USER_ID, historyDepth
+        );
+
+        // Copies the latest booking of the history to the devices row
+        context.getBean(DeviceStateReconciliationJob.class).reconcile();
+    }
+}
@@ -0,0 +1,134 @@
+package com.matheusfig90.benchmarks;
+
+import com.matheusfig90.controllers.ApiExceptionHandler;
+import com.matheusfig90.exceptions.UnavailableDeviceException;
+import jakarta.servlet.RequestDispatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.boot.autoconfigure.web.ErrorProperties;
+import org.springframework.boot.autoconfigure.web.servlet.error.BasicErrorController;
+import org.springframework.boot.web.servlet.error.DefaultErrorAttributes;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the rejection of a booking for an already booked device through Spring MVC, from the
+ * controller throwing to the problem response body written by the exception resolvers. {@code stackDepth}
+ * stands for the frames of the servlet, filter, transaction and repository calls below the controller.
+ * MockMvc doesn't dispatch to {@code /error} like the servlet container does, so the stack trace path
+ * performs that dispatch as a second request. Run with {@code -prof gc} to compare the allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BookingRejectionBenchmark {
+    private static final String MESSAGE = "Device is already booked";
+    private static final String BOOK_PATH = "/devices/1/book";
+
+    @Param({"20", "150"})
+    public int stackDepth;
+
+    // Stackless exception mapped once by the controller advice
+    private MockMvc problemMvc;
+
+    // How the controllers used to do it, without the advice: the status is sent as an error
+    // and the container renders it with the error controller
+    private MockMvc errorPageMvc;
+
+    @RestController
+    public static class RejectingController {
+        private final int stackDepth;
+
+        public RejectingController(int stackDepth) {
+            this.stackDepth = stackDepth;
+        }
+
+        @PutMapping("/devices/{id}/book")
+        public void bookDevice(@PathVariable("id") Long deviceId) throws UnavailableDeviceException {
+            rejectStackless(stackDepth);
+        }
+    }
+
+    @RestController
+    public static class WrappingController {
+        private final int stackDepth;
+
+        public WrappingController(int stackDepth) {
+            this.stackDepth = stackDepth;
+        }
+
+        @PutMapping("/devices/{id}/book")
+        public void bookDevice(@PathVariable("id") Long deviceId) {
+            try {
+                rejectWithStackTrace(stackDepth);
+            } catch (Exception e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        problemMvc = MockMvcBuilders.standaloneSetup(new RejectingController(stackDepth))
+                .setControllerAdvice(new ApiExceptionHandler())
+                .build();
+
+        errorPageMvc = MockMvcBuilders.standaloneSetup(new WrappingController(stackDepth),
+                        new BasicErrorController(new DefaultErrorAttributes(), new ErrorProperties()))
+                .addPlaceholderValue("server.error.path", "/error")
+                .build();
+    }
+
+    @Benchmark
+    public MvcResult stacklessRejection() throws Exception {
+        return problemMvc.perform(MockMvcRequestBuilders.put(BOOK_PATH).accept(MediaType.APPLICATION_JSON)).andReturn();
+    }
+
+    @Benchmark
+    public MvcResult stackTraceRejection() throws Exception {
+        MvcResult rejection = errorPageMvc.perform(MockMvcRequestBuilders.put(BOOK_PATH).accept(MediaType.APPLICATION_JSON)).andReturn();
+
+        // The error dispatch of the container, with the attributes it sets for the error controller
+        return errorPageMvc.perform(MockMvcRequestBuilders.get("/error")
+                        .accept(MediaType.APPLICATION_JSON)
+                        .requestAttr(RequestDispatcher.ERROR_STATUS_CODE, rejection.getResponse().getStatus())
+                        .requestAttr(RequestDispatcher.ERROR_MESSAGE, rejection.getResponse().getErrorMessage())
+                        .requestAttr(RequestDispatcher.ERROR_REQUEST_URI, BOOK_PATH))
+                .andReturn();
+    }
+
+    private static void rejectStackless(int depth) throws UnavailableDeviceException {
+        if (depth > 0) {
+            rejectStackless(depth - 1);
+            return;
+        }
+
+        throw new UnavailableDeviceException(MESSAGE);
+    }
+
+    private static void rejectWithStackTrace(int depth) throws Exception {
+        if (depth > 0) {
+            rejectWithStackTrace(depth - 1);
+            return;
+        }
+
+        throw new Exception(MESSAGE);
+    }
+}
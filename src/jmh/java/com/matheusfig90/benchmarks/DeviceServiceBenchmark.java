@@ -0,0 +1,107 @@
+package com.matheusfig90.benchmarks;
+
+import com.matheusfig90.entity.Booking;
+import com.matheusfig90.entity.Device;
+import com.matheusfig90.exceptions.EntityNotFoundException;
+import com.matheusfig90.exceptions.UnavailableDeviceException;
+import com.matheusfig90.service.DeviceService;
+import com.matheusfig90.service.DeviceService.DeviceInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import jakarta.persistence.EntityManagerFactory;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.matheusfig90.benchmarks.BenchmarkApplication.DEVICE_ID;
+import static com.matheusfig90.benchmarks.BenchmarkApplication.USER_ID;
+
+/**
+ * Benchmarks the DeviceService hot paths with different booking history depths for the device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeviceServiceBenchmark {
+    @Param({"10", "10000", "1000000"})
+    public int historyDepth;
+
+    private ConfigurableApplicationContext context;
+    private DeviceService deviceService;
+    private EntityManagerFactory entityManagerFactory;
+
+    @Setup(Level.Trial)
+    public void startApplication() {
+        context = BenchmarkApplication.start("device_service_benchmark_" + historyDepth);
+        BenchmarkApplication.seed(context, historyDepth);
+
+        deviceService = context.getBean(DeviceService.class);
+        entityManagerFactory = context.getBean(EntityManagerFactory.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopApplication() {
+        context.close();
+    }
+
+    @Benchmark
+    public DeviceInfo getInfo() throws EntityNotFoundException {
+        return deviceService.getInfo(DEVICE_ID);
+    }
+
+    // Misses the second-level cache on every call, so the device row is read from the database
+    @Benchmark
+    public DeviceInfo getInfoUncached() throws EntityNotFoundException {
+        entityManagerFactory.getCache().evict(Device.class, DEVICE_ID);
+
+        return deviceService.getInfo(DEVICE_ID);
+    }
+
+    @State(Scope.Benchmark)
+    public static class AvailableDevice {
+        private DeviceService deviceService;
+
+        @Setup(Level.Trial)
+        public void setUp(DeviceServiceBenchmark benchmark) {
+            deviceService = benchmark.deviceService;
+        }
+
+        @TearDown(Level.Invocation)
+        public void returnDevice() throws UnavailableDeviceException {
+            deviceService.returnDevice(DEVICE_ID);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BookedDevice {
+        private DeviceService deviceService;
+
+        @Setup(Level.Trial)
+        public void setUp(DeviceServiceBenchmark benchmark) {
+            deviceService = benchmark.deviceService;
+        }
+
+        @Setup(Level.Invocation)
+        public void bookDevice() throws EntityNotFoundException, UnavailableDeviceException {
+            deviceService.bookDevice(DEVICE_ID, USER_ID);
+        }
+    }
+
+    @Benchmark
+    public Booking bookDevice(AvailableDevice device) throws EntityNotFoundException, UnavailableDeviceException {
+        return deviceService.bookDevice(DEVICE_ID, USER_ID);
+    }
+
+    @Benchmark
+    public Booking returnDevice(BookedDevice device) throws UnavailableDeviceException {
+        return deviceService.returnDevice(DEVICE_ID);
+    }
+}
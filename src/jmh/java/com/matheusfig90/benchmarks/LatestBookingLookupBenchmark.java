@@ -0,0 +1,53 @@
+package com.matheusfig90.benchmarks;
+
+import com.matheusfig90.entity.Booking;
+import com.matheusfig90.repository.BookingRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static com.matheusfig90.benchmarks.BenchmarkApplication.DEVICE_ID;
+
+/**
+ * Latest booking lookup straight on the repository. Backed by the (device_id, booked_at DESC)
+ * index, its score should stay flat across the history depths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LatestBookingLookupBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int historyDepth;
+
+    private ConfigurableApplicationContext context;
+    private BookingRepository bookingRepository;
+
+    @Setup(Level.Trial)
+    public void startApplication() {
+        context = BenchmarkApplication.start("latest_booking_benchmark_" + historyDepth);
+        BenchmarkApplication.seed(context, historyDepth);
+
+        bookingRepository = context.getBean(BookingRepository.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopApplication() {
+        context.close();
+    }
+
+    @Benchmark
+    public Optional<Booking> findLatestBooking() {
+        return bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(DEVICE_ID);
+    }
+}
@@ -0,0 +1,83 @@
+package com.matheusfig90.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.matheusfig90.dto.DeviceDetails;
+import com.matheusfig90.entity.Booking;
+import com.matheusfig90.entity.Device;
+import com.matheusfig90.entity.User;
+import com.matheusfig90.service.DeviceService.DeviceInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the serialization of the device responses, with the same
+ * ObjectMapper defaults used by Spring MVC. The sizes on the wire are compared
+ * by DeviceControllerIntegrationTest, on the actual responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializationBenchmark {
+    private ObjectMapper objectMapper;
+    private ObjectMapper cborMapper;
+    private Booking booking;
+    private DeviceInfo deviceInfo;
+    private DeviceDetails deviceDetails;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        cborMapper = Jackson2ObjectMapperBuilder.cbor().build();
+
+        Device device = Device.builder()
+                .id(1L)
+                .name("Samsung Galaxy S9")
+                .build();
+
+        User user = User.builder()
+                .id(1L)
+                .name("Luis Suárez")
+                .build();
+
+        booking = Booking.builder()
+                .id(1L)
+                .device(device)
+                .user(user)
+                .bookedAt(LocalDateTime.now().minusHours(2))
+                .build();
+
+        deviceInfo = new DeviceInfo(device, booking, false);
+        deviceDetails = DeviceDetails.of(device, booking, false);
+    }
+
+    @Benchmark
+    public byte[] serializeDeviceInfo() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(deviceInfo);
+    }
+
+    @Benchmark
+    public byte[] serializeDeviceDetails() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(deviceDetails);
+    }
+
+    @Benchmark
+    public byte[] serializeDeviceDetailsAsCbor() throws JsonProcessingException {
+        return cborMapper.writeValueAsBytes(deviceDetails);
+    }
+
+    @Benchmark
+    public byte[] serializeBooking() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(booking);
+    }
+}
@@ -0,0 +1,146 @@
+package com.matheusfig90.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load test against a running application. The concurrency is increased step by step
+ * and, for each step, the latency percentiles, the throughput and the errors are reported.
+ * The highest step whose p99 stays under the SLO without errors is the max concurrency sustained.
+ *
+ * <p>Run it once with the application in the default mode and once with the {@code virtual-threads}
+ * profile to compare both execution modes.
+ */
+public class LoadTest {
+    private static final int[] CONCURRENCY_STEPS = {50, 100, 200, 400, 800, 1600};
+    private static final double MAX_ERROR_RATE = 0.01;
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        String path = args.length > 1 ? args[1] : "/devices/1";
+        Duration stepDuration = Duration.ofSeconds(args.length > 2 ? Long.parseLong(args[2]) : 20);
+        long p99SloMillis = args.length > 3 ? Long.parseLong(args[3]) : 250;
+
+        URI uri = URI.create(baseUrl + path);
+        HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+
+        System.out.printf("Target: %s, %ss per step, p99 SLO: %sms%n", uri, stepDuration.toSeconds(), p99SloMillis);
+        System.out.printf("%11s %10s %10s %10s %10s %10s %8s%n", "concurrency", "req/s", "p50 ms", "p99 ms", "max ms", "errors", "in SLO");
+
+        int maxConcurrencyInSlo = 0;
+        for (int concurrency : CONCURRENCY_STEPS) {
+            StepResult result = runStep(client, uri, concurrency, stepDuration);
+            boolean inSlo = result.percentileMillis(0.99) <= p99SloMillis && result.errorRate() <= MAX_ERROR_RATE;
+            if (inSlo) {
+                maxConcurrencyInSlo = concurrency;
+            }
+
+            System.out.printf("%11d %10.0f %10.1f %10.1f %10.1f %10d %8s%n",
+                    concurrency, result.throughput(stepDuration), result.percentileMillis(0.50),
+                    result.percentileMillis(0.99), result.percentileMillis(1.0), result.errors(), inSlo ? "yes" : "no");
+        }
+
+        System.out.printf("Max concurrency within the SLO: %d%n", maxConcurrencyInSlo);
+    }
+
+    private static StepResult runStep(HttpClient client, URI uri, int concurrency, Duration duration) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(10))
+                .GET()
+                .build();
+
+        long deadline = System.nanoTime() + duration.toNanos();
+        AtomicLong errors = new AtomicLong();
+        AtomicInteger requests = new AtomicInteger();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<LatencyRecorder>> workers = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                workers.add(executor.submit(() -> {
+                    LatencyRecorder recorder = new LatencyRecorder();
+                    while (System.nanoTime() < deadline) {
+                        long startedAt = System.nanoTime();
+                        try {
+                            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                            if (response.statusCode() >= 500) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+
+                        recorder.record(System.nanoTime() - startedAt);
+                        requests.incrementAndGet();
+                    }
+
+                    return recorder;
+                }));
+            }
+
+            LatencyRecorder all = new LatencyRecorder();
+            for (Future<LatencyRecorder> worker : workers) {
+                all.addAll(worker.get());
+            }
+
+            return new StepResult(all.sorted(), requests.get(), errors.get());
+        }
+    }
+
+    private record StepResult(long[] sortedLatencies, int requests, long errors) {
+        double percentileMillis(double percentile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+
+            int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(index, 0)] / 1_000_000.0;
+        }
+
+        double throughput(Duration duration) {
+            return requests / (double) duration.toSeconds();
+        }
+
+        double errorRate() {
+            return requests == 0 ? 0 : errors / (double) requests;
+        }
+    }
+
+    private static class LatencyRecorder {
+        private long[] latencies = new long[1024];
+        private int size;
+
+        void record(long latencyNanos) {
+            if (size == latencies.length) {
+                latencies = Arrays.copyOf(latencies, size * 2);
+            }
+
+            latencies[size++] = latencyNanos;
+        }
+
+        void addAll(LatencyRecorder other) {
+            for (int i = 0; i < other.size; i++) {
+                record(other.latencies[i]);
+            }
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
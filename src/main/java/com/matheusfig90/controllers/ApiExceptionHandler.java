@@ -0,0 +1,26 @@
+package com.matheusfig90.controllers;
+
+import com.matheusfig90.exceptions.EntityNotFoundException;
+import com.matheusfig90.exceptions.UnavailableDeviceException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ProblemDetail;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExceptionHandler;
+
+/**
+ * Maps the expected failures of the services to RFC 7807 problem responses, in one place for all controllers.
+ * The Spring MVC and {@code ResponseStatusException} errors are rendered the same way by the base class.
+ */
+@RestControllerAdvice
+public class ApiExceptionHandler extends ResponseEntityExceptionHandler {
+    @ExceptionHandler(EntityNotFoundException.class)
+    public ProblemDetail handleEntityNotFound(EntityNotFoundException e) {
+        return ProblemDetail.forStatusAndDetail(HttpStatus.NOT_FOUND, e.getMessage());
+    }
+
+    @ExceptionHandler(UnavailableDeviceException.class)
+    public ProblemDetail handleUnavailableDevice(UnavailableDeviceException e) {
+        return ProblemDetail.forStatusAndDetail(HttpStatus.BAD_REQUEST, e.getMessage());
+    }
+}
@@ -0,0 +1,44 @@
+package com.matheusfig90.controllers;
+
+import com.matheusfig90.dto.CacheRegionStats;
+import com.matheusfig90.service.CacheService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("admin/caches")
+public class CacheAdminController {
+    @Autowired
+    private CacheService cacheService;
+
+    @GetMapping
+    public List<CacheRegionStats> getStatistics() {
+        return cacheService.getStatistics();
+    }
+
+    @DeleteMapping
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void evictAll() {
+        cacheService.evictAll();
+    }
+
+    @DeleteMapping("/devices/{id}")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void evictDevice(@PathVariable("id") Long deviceId) {
+        cacheService.evictDevice(deviceId);
+    }
+
+    @DeleteMapping("/users/{id}")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void evictUser(@PathVariable("id") Long userId) {
+        cacheService.evictUser(userId);
+    }
+}
@@ -0,0 +1,17 @@
+package com.matheusfig90.controllers;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.stereotype.Component;
+
+/**
+ * Answers the clients which send {@code Accept: application/cbor} with the same fields as the JSON responses.
+ * Built from the application's Jackson settings (e.g. ISO dates), it replaces the default CBOR converter.
+ */
+@Component
+public class CborMessageConverter extends MappingJackson2CborHttpMessageConverter {
+    public CborMessageConverter(Jackson2ObjectMapperBuilder objectMapperBuilder) {
+        super(objectMapperBuilder.factory(new CBORFactory()).build());
+    }
+}
@@ -1,60 +1,299 @@
 package com.matheusfig90.controllers;
 
+import com.matheusfig90.controllers.requests.BatchBookDevicesRequestBody;
+import com.matheusfig90.controllers.requests.BatchReturnDevicesRequestBody;
 import com.matheusfig90.controllers.requests.BookDeviceRequestBody;
+import com.matheusfig90.controllers.requests.ReserveDeviceRequestBody;
+import com.matheusfig90.dto.BookingPage;
+import com.matheusfig90.dto.BookingPage.Cursor;
+import com.matheusfig90.dto.DeviceDetails;
+import com.matheusfig90.dto.DevicePage;
+import com.matheusfig90.dto.DeviceStatus;
+import com.matheusfig90.dto.UsageStats;
 import com.matheusfig90.entity.Booking;
+import com.matheusfig90.entity.DeviceWaiter;
+import com.matheusfig90.entity.Reservation;
 import com.matheusfig90.exceptions.EntityNotFoundException;
 import com.matheusfig90.exceptions.UnavailableDeviceException;
+import com.matheusfig90.observability.BookingMetrics;
+import com.matheusfig90.service.BatchBookingService;
+import com.matheusfig90.service.BatchBookingService.BatchMode;
+import com.matheusfig90.service.BatchBookingService.BatchResult;
+import com.matheusfig90.service.BookingHistoryService;
+import com.matheusfig90.service.DeviceEventBroadcaster;
 import com.matheusfig90.service.DeviceService;
 import com.matheusfig90.service.DeviceService.DeviceInfo;
+import com.matheusfig90.service.ReservationService;
+import com.matheusfig90.service.UsageStatsService;
+import com.matheusfig90.service.WaitQueueService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
 @RestController
 @RequestMapping("devices")
 public class DeviceController {
+    private static final int MAX_PAGE_SIZE = 500;
+    // Caches may keep the info, but must revalidate it since a device can be booked at any time
+    private static final CacheControl DEVICE_CACHE_CONTROL = CacheControl.noCache();
+
     @Autowired
     private DeviceService deviceService;
 
+    @Autowired
+    private BatchBookingService batchBookingService;
+
+    @Autowired
+    private BookingMetrics bookingMetrics;
+
+    @Autowired
+    private DeviceEventBroadcaster deviceEventBroadcaster;
+
+    @Autowired
+    private WaitQueueService waitQueueService;
+
+    @Autowired
+    private UsageStatsService usageStatsService;
+
+    @Autowired
+    private BookingHistoryService bookingHistoryService;
+
+    @Autowired
+    private ReservationService reservationService;
+
+    @GetMapping
+    public DevicePage listDevices(@RequestParam(value = "afterId", required = false) Long afterId,
+                                  @RequestParam(value = "limit", defaultValue = "50") int limit,
+                                  @RequestParam(value = "name", required = false) String name,
+                                  @RequestParam(value = "status", required = false) DeviceStatus status,
+                                  @RequestParam(value = "bookedBy", required = false) Long bookedByUserId) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("The limit must be between 1 and %s", MAX_PAGE_SIZE));
+        }
+
+        return deviceService.listDevices(afterId, limit, name, status, bookedByUserId);
+    }
+
+    // Devices free during the whole slot, e.g. ?name=pixel&from=2024-06-04T14:00:00&to=2024-06-04T16:00:00
+    @GetMapping("/availability")
+    public DevicePage findAvailableDevices(@RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                           @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+                                           @RequestParam(value = "name", required = false) String name,
+                                           @RequestParam(value = "afterId", required = false) Long afterId,
+                                           @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("The limit must be between 1 and %s", MAX_PAGE_SIZE));
+        }
+        if (!from.isBefore(to)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The start must be before the end");
+        }
+
+        return reservationService.findAvailableDevices(from, to, name, afterId, limit);
+    }
+
+    // Book and return events, optionally only for some devices (e.g. ?deviceId=1&deviceId=2)
+    @GetMapping(path = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamEvents(@RequestParam(value = "deviceId", required = false) List<Long> deviceIds) {
+        return deviceEventBroadcaster.subscribe(deviceIds);
+    }
+
+    // Pollers send the ETag back in If-None-Match, an unchanged device is answered with a 304
+    // from its version alone, without building the info. The JSON and CBOR bodies differ, so each
+    // has its own ETag and caches key them by the Accept header
     @GetMapping("/{id}")
-    public DeviceInfo getDeviceById(@PathVariable("id") Long deviceId) {
-        try {
-            DeviceInfo deviceInfo = deviceService.getInfo(deviceId);
+    public ResponseEntity<DeviceDetails> getDeviceById(@PathVariable("id") Long deviceId, WebRequest webRequest) throws EntityNotFoundException {
+        String representation = isCborPreferred(webRequest) ? "-cbor" : "";
+        String eTag = deviceETag(deviceId, deviceService.getVersion(deviceId), representation);
+        if (webRequest.checkNotModified(eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(eTag)
+                    .varyBy(HttpHeaders.ACCEPT)
+                    .cacheControl(DEVICE_CACHE_CONTROL)
+                    .build();
+        }
 
-            return deviceInfo;
-        } catch (EntityNotFoundException e) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        DeviceInfo deviceInfo = deviceService.getInfo(deviceId);
+
+        // Tagged with the version it was built from, in case the device changed in between
+        return ResponseEntity.ok()
+                .eTag(deviceETag(deviceId, deviceInfo.device().getVersion(), representation))
+                .varyBy(HttpHeaders.ACCEPT)
+                .cacheControl(DEVICE_CACHE_CONTROL)
+                .body(DeviceDetails.of(deviceInfo.device(), deviceInfo.latestBooking(), deviceInfo.isAvailable()));
+    }
+
+    @GetMapping("/{id}/stats")
+    public UsageStats getDeviceStats(@PathVariable("id") Long deviceId) throws EntityNotFoundException {
+        return usageStatsService.getDeviceStats(deviceId);
+    }
+
+    // Newest first, follow nextCursor for the older bookings
+    @GetMapping("/{id}/bookings")
+    public BookingPage getDeviceBookings(@PathVariable("id") Long deviceId,
+                                         @RequestParam(value = "cursor", required = false) String cursor,
+                                         @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("The limit must be between 1 and %s", MAX_PAGE_SIZE));
         }
+
+        return bookingHistoryService.getDeviceHistory(deviceId, decodeCursor(cursor), limit);
     }
 
     @PutMapping("/{id}/book")
-    public Booking bookDevice(@PathVariable("id") Long deviceId, @RequestBody BookDeviceRequestBody requestBody) {
+    public Booking bookDevice(@PathVariable("id") Long deviceId, @RequestBody BookDeviceRequestBody requestBody)
+            throws EntityNotFoundException, UnavailableDeviceException {
         try {
             Booking booking = deviceService.bookDevice(deviceId, requestBody.userId());
+            bookingMetrics.booked(1);
 
             return booking;
         } catch (EntityNotFoundException e) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+            bookingMetrics.notFound();
+            throw e;
         } catch (UnavailableDeviceException e) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+            bookingMetrics.alreadyBooked();
+            throw e;
         }
     }
 
     @PutMapping("/{id}/return")
-    public Booking returnDevice(@PathVariable("id") Long deviceId) {
+    public Booking returnDevice(@PathVariable("id") Long deviceId) throws UnavailableDeviceException {
         try {
             Booking booking = deviceService.returnDevice(deviceId);
+            bookingMetrics.returned(1);
 
             return booking;
         } catch (UnavailableDeviceException e) {
+            bookingMetrics.notBooked();
+            throw e;
+        }
+    }
+
+    // Joins the wait queue of a booked device, follow the waiter with GET /waiters/{id}
+    @PutMapping("/{id}/wait")
+    public DeviceWaiter waitForDevice(@PathVariable("id") Long deviceId, @RequestBody BookDeviceRequestBody requestBody)
+            throws EntityNotFoundException, UnavailableDeviceException {
+        return waitQueueService.enqueue(deviceId, requestBody.userId());
+    }
+
+    @PostMapping("/{id}/reservations")
+    @ResponseStatus(HttpStatus.CREATED)
+    public Reservation reserveDevice(@PathVariable("id") Long deviceId, @RequestBody ReserveDeviceRequestBody requestBody)
+            throws EntityNotFoundException, UnavailableDeviceException {
+        if (Objects.isNull(requestBody.startsAt()) || Objects.isNull(requestBody.endsAt())
+                || !requestBody.startsAt().isBefore(requestBody.endsAt())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The start must be before the end");
+        }
+        if (!requestBody.startsAt().isAfter(LocalDateTime.now())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The start must be in the future");
+        }
+
+        return reservationService.reserve(deviceId, requestBody.userId(), requestBody.startsAt(), requestBody.endsAt());
+    }
+
+    @PutMapping("/book")
+    public BatchResult bookDevices(@RequestBody BatchBookDevicesRequestBody requestBody)
+            throws EntityNotFoundException, UnavailableDeviceException {
+        validateDeviceIds(requestBody.deviceIds());
+
+        try {
+            BatchResult result = batchBookingService.bookDevices(requestBody.deviceIds(), requestBody.userId(), modeOrDefault(requestBody.mode()));
+            bookingMetrics.booked(result.bookings().size());
+
+            return result;
+        } catch (EntityNotFoundException e) {
+            bookingMetrics.notFound();
+            throw e;
+        } catch (UnavailableDeviceException e) {
+            bookingMetrics.alreadyBooked();
+            throw e;
+        }
+    }
+
+    @PutMapping("/return")
+    public BatchResult returnDevices(@RequestBody BatchReturnDevicesRequestBody requestBody) throws UnavailableDeviceException {
+        validateDeviceIds(requestBody.deviceIds());
+
+        try {
+            BatchResult result = batchBookingService.returnDevices(requestBody.deviceIds(), modeOrDefault(requestBody.mode()));
+            bookingMetrics.returned(result.bookings().size());
+
+            return result;
+        } catch (UnavailableDeviceException e) {
+            bookingMetrics.notBooked();
+            throw e;
+        }
+    }
+
+    static Cursor decodeCursor(String cursor) {
+        try {
+            return Objects.isNull(cursor) ? null : Cursor.decode(cursor);
+        } catch (IllegalArgumentException e) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
         }
     }
+
+    private static String deviceETag(Long deviceId, long version, String representation) {
+        return "\"" + deviceId + "-" + version + representation + "\"";
+    }
+
+    // Same choice as the content negotiation: JSON is written for wildcards, CBOR only when it's asked for first
+    private static boolean isCborPreferred(WebRequest webRequest) {
+        String[] accept = webRequest.getHeaderValues(HttpHeaders.ACCEPT);
+        if (Objects.isNull(accept)) {
+            return false;
+        }
+
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = new ArrayList<>(MediaType.parseMediaTypes(List.of(accept)));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        MimeTypeUtils.sortBySpecificity(mediaTypes);
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.equalsTypeAndSubtype(MediaType.APPLICATION_CBOR)) {
+                return true;
+            }
+
+            if (mediaType.isCompatibleWith(MediaType.APPLICATION_JSON)) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    private void validateDeviceIds(List<Long> deviceIds) {
+        if (Objects.isNull(deviceIds) || deviceIds.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At least one device ID is required");
+        }
+    }
+
+    private BatchMode modeOrDefault(BatchMode mode) {
+        return Objects.isNull(mode) ? BatchMode.ALL_OR_NOTHING : mode;
+    }
 }
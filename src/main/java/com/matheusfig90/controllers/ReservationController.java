@@ -0,0 +1,24 @@
+package com.matheusfig90.controllers;
+
+import com.matheusfig90.exceptions.EntityNotFoundException;
+import com.matheusfig90.service.ReservationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("reservations")
+public class ReservationController {
+    @Autowired
+    private ReservationService reservationService;
+
+    @DeleteMapping("/{id}")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void cancel(@PathVariable("id") Long reservationId) throws EntityNotFoundException {
+        reservationService.cancel(reservationId);
+    }
+}
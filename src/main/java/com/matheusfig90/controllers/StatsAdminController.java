@@ -0,0 +1,34 @@
+package com.matheusfig90.controllers;
+
+import com.matheusfig90.jobs.UsageBackfillJob;
+import com.matheusfig90.jobs.UsageBackfillJob.BackfillResult;
+import com.matheusfig90.service.UsageStatsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("admin/stats")
+public class StatsAdminController {
+    @Autowired
+    private UsageBackfillJob usageBackfillJob;
+
+    @Autowired
+    private UsageStatsService usageStatsService;
+
+    // Rebuilds the usage rollups from the booking history
+    @PostMapping("/backfill")
+    public BackfillResult backfill() {
+        return usageBackfillJob.backfill();
+    }
+
+    // Applies the pending book and return events to the rollups, waiting for a flush or backfill in progress
+    @PostMapping("/flush")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void flush() {
+        usageStatsService.flushNow();
+    }
+}
@@ -0,0 +1,44 @@
+package com.matheusfig90.controllers;
+
+import com.matheusfig90.dto.BookingPage;
+import com.matheusfig90.dto.UsageStats;
+import com.matheusfig90.exceptions.EntityNotFoundException;
+import com.matheusfig90.service.BookingHistoryService;
+import com.matheusfig90.service.UsageStatsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+@RestController
+@RequestMapping("users")
+public class UserController {
+    private static final int MAX_PAGE_SIZE = 500;
+
+    @Autowired
+    private UsageStatsService usageStatsService;
+
+    @Autowired
+    private BookingHistoryService bookingHistoryService;
+
+    @GetMapping("/{id}/stats")
+    public UsageStats getUserStats(@PathVariable("id") Long userId) throws EntityNotFoundException {
+        return usageStatsService.getUserStats(userId);
+    }
+
+    // Newest first, follow nextCursor for the older bookings
+    @GetMapping("/{id}/bookings")
+    public BookingPage getUserBookings(@PathVariable("id") Long userId,
+                                       @RequestParam(value = "cursor", required = false) String cursor,
+                                       @RequestParam(value = "limit", defaultValue = "50") int limit) throws EntityNotFoundException {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("The limit must be between 1 and %s", MAX_PAGE_SIZE));
+        }
+
+        return bookingHistoryService.getUserHistory(userId, DeviceController.decodeCursor(cursor), limit);
+    }
+}
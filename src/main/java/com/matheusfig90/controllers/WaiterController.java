@@ -0,0 +1,44 @@
+package com.matheusfig90.controllers;
+
+import com.matheusfig90.entity.DeviceWaiter;
+import com.matheusfig90.exceptions.EntityNotFoundException;
+import com.matheusfig90.exceptions.UnavailableDeviceException;
+import com.matheusfig90.service.WaitQueueService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+
+@RestController
+@RequestMapping("waiters")
+public class WaiterController {
+    private static final int MAX_TIMEOUT_SECONDS = 60;
+
+    @Autowired
+    private WaitQueueService waitQueueService;
+
+    // Long poll, answers as soon as the device is granted or with the current state after the timeout
+    @GetMapping("/{id}")
+    public DeferredResult<DeviceWaiter> awaitGrant(@PathVariable("id") Long waiterId,
+                                                   @RequestParam(value = "timeoutSeconds", defaultValue = "30") int timeoutSeconds)
+            throws EntityNotFoundException {
+        if (timeoutSeconds < 1 || timeoutSeconds > MAX_TIMEOUT_SECONDS) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("The timeout must be between 1 and %s seconds", MAX_TIMEOUT_SECONDS));
+        }
+
+        return waitQueueService.awaitGrant(waiterId, timeoutSeconds * 1000L);
+    }
+
+    @DeleteMapping("/{id}")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void cancel(@PathVariable("id") Long waiterId) throws EntityNotFoundException, UnavailableDeviceException {
+        waitQueueService.cancel(waiterId);
+    }
+}
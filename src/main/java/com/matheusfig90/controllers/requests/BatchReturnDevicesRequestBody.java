@@ -0,0 +1,7 @@
+package com.matheusfig90.controllers.requests;
+
+import com.matheusfig90.service.BatchBookingService.BatchMode;
+
+import java.util.List;
+
+public record BatchReturnDevicesRequestBody(List<Long> deviceIds, BatchMode mode) {}
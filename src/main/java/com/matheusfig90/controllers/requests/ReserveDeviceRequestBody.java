@@ -0,0 +1,5 @@
+package com.matheusfig90.controllers.requests;
+
+import java.time.LocalDateTime;
+
+public record ReserveDeviceRequestBody(Long userId, LocalDateTime startsAt, LocalDateTime endsAt) {}
@@ -0,0 +1,72 @@
+package com.matheusfig90.datasource;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.WebUtils;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of a client which wrote within {@code app.datasource.replica.read-your-writes-ms} go to the primary,
+ * so a user who just booked a device doesn't see it available on a lagging replica. The deadline is kept
+ * in a cookie, so it holds whichever node serves the next request.
+ */
+@Component
+@ConditionalOnProperty("app.datasource.replica.url")
+public class ReadYourWritesFilter extends OncePerRequestFilter {
+    static final String COOKIE_NAME = "read-primary-until";
+
+    private final long windowMillis;
+
+    public ReadYourWritesFilter(@Value("${app.datasource.replica.read-your-writes-ms:5000}") long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        long now = System.currentTimeMillis();
+        boolean write = !HttpMethod.GET.matches(request.getMethod()) && !HttpMethod.HEAD.matches(request.getMethod());
+
+        if (write) {
+            Cookie cookie = new Cookie(COOKIE_NAME, String.valueOf(now + windowMillis));
+            cookie.setPath("/");
+            cookie.setHttpOnly(true);
+            cookie.setMaxAge((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(windowMillis)));
+            response.addCookie(cookie);
+        } else if (!wroteRecently(request, now)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        ReplicaRoutingDataSource.pinToPrimary();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            ReplicaRoutingDataSource.unpin();
+        }
+    }
+
+    private static boolean wroteRecently(HttpServletRequest request, long now) {
+        Cookie cookie = WebUtils.getCookie(request, COOKIE_NAME);
+        if (Objects.isNull(cookie)) {
+            return false;
+        }
+
+        try {
+            return Long.parseLong(cookie.getValue()) > now;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.matheusfig90.datasource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.autoconfigure.transaction.TransactionManagerCustomizers;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StringUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+
+/**
+ * Replaces the single data source with a primary and a replica pool when {@code app.datasource.replica.url} is set.
+ * The primary is configured by the usual {@code spring.datasource.*} and {@code spring.datasource.hikari.*}
+ * properties, the replica pool by {@code app.datasource.replica.hikari.*}.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty("app.datasource.replica.url")
+public class ReplicaDataSourceConfiguration {
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        if (StringUtils.hasText(properties.getName())) {
+            dataSource.setPoolName(properties.getName());
+        }
+
+        return dataSource;
+    }
+
+    @Bean
+    @ConfigurationProperties("app.datasource.replica.hikari")
+    public HikariDataSource replicaDataSource(DataSourceProperties properties,
+                                              @Value("${app.datasource.replica.url}") String replicaUrl,
+                                              @Value("${app.datasource.replica.username:${spring.datasource.username:}}") String replicaUsername,
+                                              @Value("${app.datasource.replica.password:${spring.datasource.password:}}") String replicaPassword) {
+        HikariDataSource dataSource = DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .driverClassName(properties.determineDriverClassName())
+                .url(replicaUrl)
+                .username(replicaUsername)
+                .password(replicaPassword)
+                .build();
+        dataSource.setPoolName("replica");
+
+        return dataSource;
+    }
+
+    // The one used by JPA, Flyway and the JdbcTemplate. The pools are closed by the context
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("primaryDataSource") DataSource primaryDataSource,
+                                 @Qualifier("replicaDataSource") DataSource replicaDataSource,
+                                 ObjectProvider<MeterRegistry> meterRegistry) {
+        return new LazyRoutingDataSource(new ReplicaRoutingDataSource(primaryDataSource, replicaDataSource, meterRegistry));
+    }
+
+    @Bean
+    public PlatformTransactionManager transactionManager(ObjectProvider<TransactionManagerCustomizers> transactionManagerCustomizers) {
+        JpaTransactionManager transactionManager = new ReplicaCacheModeTransactionManager();
+        transactionManagerCustomizers.ifAvailable(customizers -> customizers.customize((TransactionManager) transactionManager));
+
+        return transactionManager;
+    }
+
+    static class LazyRoutingDataSource extends LazyConnectionDataSourceProxy {
+        LazyRoutingDataSource(ReplicaRoutingDataSource routingDataSource) {
+            // Known up front, so no connection is opened to find them out
+            setTargetDataSource(routingDataSource);
+            setDefaultAutoCommit(true);
+            setDefaultTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            afterPropertiesSet();
+        }
+    }
+
+    /**
+     * Sessions of the transactions routed to the replica read the second-level cache, but don't fill it:
+     * a lagging row cached by them would be served to the next bookings and returns of the device.
+     */
+    static class ReplicaCacheModeTransactionManager extends JpaTransactionManager {
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+            // A session opened outside of this transaction may be shared with the writes
+            boolean preBound = TransactionSynchronizationManager.hasResource(obtainEntityManagerFactory());
+
+            super.doBegin(transaction, definition);
+
+            if (!preBound && ReplicaRoutingDataSource.routesToReplica(definition.isReadOnly())) {
+                EntityManagerHolder holder = (EntityManagerHolder) TransactionSynchronizationManager.getResource(obtainEntityManagerFactory());
+                holder.getEntityManager().unwrap(Session.class).setCacheMode(CacheMode.GET);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.matheusfig90.datasource;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Sends the connections of read-only transactions to the replica, and everything else to the primary.
+ * It must sit behind a lazy connection proxy, so the target is picked at the first statement,
+ * once the transaction is marked read-only.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+    public enum Target {
+        PRIMARY, REPLICA
+    }
+
+    // Set while serving a client which wrote recently, see ReadYourWritesFilter
+    private static final ThreadLocal<Boolean> PRIMARY_PINNED = new ThreadLocal<>();
+
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+
+    // Resolved on the first connection rather than per connection, empty without a registry
+    private volatile Map<Target, Counter> routedConnections;
+
+    public ReplicaRoutingDataSource(DataSource primary, DataSource replica, ObjectProvider<MeterRegistry> meterRegistry) {
+        this.meterRegistry = meterRegistry;
+
+        setTargetDataSources(Map.of(Target.PRIMARY, primary, Target.REPLICA, replica));
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+    }
+
+    public static void pinToPrimary() {
+        PRIMARY_PINNED.set(Boolean.TRUE);
+    }
+
+    public static void unpin() {
+        PRIMARY_PINNED.remove();
+    }
+
+    /**
+     * Whether a transaction of the current thread goes to the replica.
+     */
+    public static boolean routesToReplica(boolean readOnly) {
+        return readOnly && PRIMARY_PINNED.get() == null;
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        Target target = routesToReplica(TransactionSynchronizationManager.isCurrentTransactionReadOnly())
+                ? Target.REPLICA
+                : Target.PRIMARY;
+
+        Counter counter = routedConnections().get(target);
+        if (Objects.nonNull(counter)) {
+            counter.increment();
+        }
+
+        return target;
+    }
+
+    private Map<Target, Counter> routedConnections() {
+        Map<Target, Counter> counters = routedConnections;
+        if (Objects.isNull(counters)) {
+            counters = new EnumMap<>(Target.class);
+            MeterRegistry registry = meterRegistry.getIfAvailable();
+            if (Objects.nonNull(registry)) {
+                for (Target target : Target.values()) {
+                    counters.put(target, registry.counter("datasource.routed.connections", "target", target.name().toLowerCase()));
+                }
+            }
+            routedConnections = counters;
+        }
+
+        return counters;
+    }
+}
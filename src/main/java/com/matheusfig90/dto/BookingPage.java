@@ -0,0 +1,34 @@
+package com.matheusfig90.dto;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A page of bookings, newest first. {@code nextCursor} is the opaque cursor for the next page,
+ * or null when this is the last one.
+ */
+public record BookingPage(List<BookingSummary> bookings, String nextCursor) {
+    /**
+     * Position after the last booking of a page, bookings are ordered by (bookedAt, id) descending.
+     */
+    public record Cursor(LocalDateTime bookedAt, Long id) {
+        public String encode() {
+            String value = bookedAt + "," + id;
+
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public static Cursor decode(String cursor) {
+            try {
+                String[] value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(",", 2);
+
+                return new Cursor(LocalDateTime.parse(value[0]), Long.valueOf(value[1]));
+            } catch (IllegalArgumentException | DateTimeParseException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid cursor", e);
+            }
+        }
+    }
+}
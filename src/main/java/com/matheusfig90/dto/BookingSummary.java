@@ -0,0 +1,10 @@
+package com.matheusfig90.dto;
+
+import java.time.LocalDateTime;
+
+/**
+ * Lean view of a booking with the device and user names, built straight from a query projection.
+ */
+public record BookingSummary(Long id, Long deviceId, String deviceName, Long userId, String userName,
+                             LocalDateTime bookedAt, LocalDateTime returnedAt) {
+}
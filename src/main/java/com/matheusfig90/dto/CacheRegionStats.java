@@ -0,0 +1,4 @@
+package com.matheusfig90.dto;
+
+public record CacheRegionStats(String region, long hits, long misses, long puts, long size) {
+}
@@ -0,0 +1,29 @@
+package com.matheusfig90.dto;
+
+import com.matheusfig90.entity.Booking;
+import com.matheusfig90.entity.Device;
+
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * Wire format of the device info: the device once, and its latest booking flattened to the user id and name.
+ */
+public record DeviceDetails(Long id, String name, Boolean isAvailable, LatestBooking latestBooking) {
+    public record LatestBooking(Long id, Long userId, String userName, LocalDateTime bookedAt, LocalDateTime returnedAt) {
+    }
+
+    public static DeviceDetails of(Device device, Booking latestBooking, Boolean isAvailable) {
+        if (Objects.isNull(latestBooking)) {
+            return new DeviceDetails(device.getId(), device.getName(), isAvailable, null);
+        }
+
+        return new DeviceDetails(device.getId(), device.getName(), isAvailable, new LatestBooking(
+                latestBooking.getId(),
+                latestBooking.getUser().getId(),
+                latestBooking.getUser().getName(),
+                latestBooking.getBookedAt(),
+                latestBooking.getReturnedAt()
+        ));
+    }
+}
@@ -0,0 +1,22 @@
+package com.matheusfig90.dto;
+
+import com.matheusfig90.entity.Booking;
+
+import java.time.LocalDateTime;
+
+/**
+ * Change of a device availability, pushed to the {@code /devices/events} subscribers once committed.
+ * {@code at} is when the booking was made or returned, {@code bookedAt} when it was made.
+ */
+public record DeviceEvent(Long deviceId, DeviceStatus status, Long bookingId, Long userId, LocalDateTime at,
+                          LocalDateTime bookedAt) {
+    public static DeviceEvent booked(Booking booking) {
+        return new DeviceEvent(booking.getDevice().getId(), DeviceStatus.BOOKED, booking.getId(),
+                booking.getUser().getId(), booking.getBookedAt(), booking.getBookedAt());
+    }
+
+    public static DeviceEvent returned(Booking booking) {
+        return new DeviceEvent(booking.getDevice().getId(), DeviceStatus.AVAILABLE, booking.getId(),
+                booking.getUser().getId(), booking.getReturnedAt(), booking.getBookedAt());
+    }
+}
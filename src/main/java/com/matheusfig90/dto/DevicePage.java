@@ -0,0 +1,10 @@
+package com.matheusfig90.dto;
+
+import java.util.List;
+
+/**
+ * A page of devices ordered by id. {@code nextAfterId} is the cursor for the next page,
+ * or null when this is the last one.
+ */
+public record DevicePage(List<DeviceSummary> devices, Long nextAfterId) {
+}
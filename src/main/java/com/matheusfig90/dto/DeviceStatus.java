@@ -0,0 +1,6 @@
+package com.matheusfig90.dto;
+
+public enum DeviceStatus {
+    AVAILABLE,
+    BOOKED
+}
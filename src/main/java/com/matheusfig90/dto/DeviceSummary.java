@@ -0,0 +1,14 @@
+package com.matheusfig90.dto;
+
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * Lean view of a device and its open booking, built straight from a query projection.
+ */
+public record DeviceSummary(Long id, String name, Boolean isAvailable,
+                            Long bookedByUserId, String bookedByUserName, LocalDateTime bookedAt) {
+    public DeviceSummary(Long id, String name, Long bookedByUserId, String bookedByUserName, LocalDateTime bookedAt) {
+        this(id, name, Objects.isNull(bookedAt), bookedByUserId, bookedByUserName, bookedAt);
+    }
+}
@@ -0,0 +1,14 @@
+package com.matheusfig90.dto;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Usage of a device or a user, read from the rollups. {@code meanHoldMinutes} only counts
+ * returned bookings, and is null until the first return.
+ */
+public record UsageStats(Long id, long bookingCount, double totalBookedHours, Double meanHoldMinutes,
+                         int currentStreakDays, LocalDate lastBookedOn, List<DailyUsageStats> daily) {
+    public record DailyUsageStats(LocalDate date, long bookingCount, double bookedHours) {
+    }
+}
@@ -1,38 +1,68 @@
 package com.matheusfig90.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.PreUpdate;
+import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.time.LocalDateTime;
+import java.util.Objects;
 
 @Data
 @Builder(toBuilder = true)
 @AllArgsConstructor
 @NoArgsConstructor
 @Entity
-@Table(name = "bookings")
+@Table(name = "bookings", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_bookings_open_device", columnNames = "open_device_id")
+}, indexes = {
+        @Index(name = "idx_bookings_device_booked_at", columnList = "device_id, booked_at DESC, id DESC"),
+        @Index(name = "idx_bookings_user_booked_at", columnList = "user_id, booked_at DESC, id DESC")
+})
 public class Booking {
+    // Pooled sequence, so ids are assigned in memory and inserts can be sent in JDBC batches
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "bookings_seq")
+    @SequenceGenerator(name = "bookings_seq", sequenceName = "bookings_seq", allocationSize = 50)
     private Long id;
 
-    @ManyToOne
+    // Fetched explicitly by the queries which need them (see BookingRepository)
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "device_id")
     private Device device;
 
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "user_id")
     private User user;
 
     private LocalDateTime bookedAt;
     private LocalDateTime returnedAt;
+
+    // Holds the device id only while the booking is open, so the unique constraint
+    // allows a single open booking per device (NULLs are not compared). The schema is
+    // managed by Flyway on PostgreSQL, where the open_bookings table enforces it instead
+    @JsonIgnore
+    @Column(name = "open_device_id")
+    private Long openDeviceId;
+
+    @PrePersist
+    @PreUpdate
+    private void syncOpenDeviceId() {
+        openDeviceId = Objects.isNull(returnedAt) && !Objects.isNull(device) ? device.getId() : null;
+    }
 }
@@ -0,0 +1,28 @@
+package com.matheusfig90.entity;
+
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Daily rollup of the bookings of a device or a user. Bookings are counted on the day they
+ * were made, and their hold time is added to that same day once they're returned.
+ */
+@Data
+@Builder(toBuilder = true)
+@AllArgsConstructor
+@NoArgsConstructor
+@Entity
+@Table(name = "usage_daily")
+public class DailyUsage {
+    @EmbeddedId
+    private DailyUsageId id;
+
+    private long bookingCount;
+    private long returnedCount;
+    private long bookedSeconds;
+}
@@ -0,0 +1,29 @@
+package com.matheusfig90.entity;
+
+import com.matheusfig90.entity.UsageSubject.SubjectType;
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Embeddable
+public class DailyUsageId implements Serializable {
+    @Enumerated(EnumType.STRING)
+    @Column(name = "subject_type", length = 6, nullable = false)
+    private SubjectType subjectType;
+
+    @Column(name = "subject_id", nullable = false)
+    private Long subjectId;
+
+    @Column(name = "usage_date", nullable = false)
+    private LocalDate usageDate;
+}
@@ -1,22 +1,37 @@
 package com.matheusfig90.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
 import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+@JsonIgnoreProperties({"hibernateLazyInitializer", "handler"})
 @Data
 @Builder(toBuilder = true)
 @AllArgsConstructor
 @NoArgsConstructor
 @Entity
 @Table(name = "devices")
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "devices")
 public class Device {
     @Id
     @GeneratedValue(strategy = GenerationType.AUTO)
@@ -24,4 +39,41 @@ public class Device {
 
     @Column(name = "name", length = 60)
     private String name;
+
+    // State of the latest booking, updated in the same transaction as each book/return,
+    // so the availability is read from this row instead of the booking history.
+    // The device is booked by latestUser since latestBookedAt while latestReturnedAt is null.
+    @JsonIgnore
+    @Column(name = "latest_booking_id")
+    private Long latestBookingId;
+
+    @JsonIgnore
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "latest_user_id")
+    private User latestUser;
+
+    @JsonIgnore
+    @Column(name = "latest_booked_at")
+    private LocalDateTime latestBookedAt;
+
+    @JsonIgnore
+    @Column(name = "latest_returned_at")
+    private LocalDateTime latestReturnedAt;
+
+    // End of the latest reservation, bookings only look the reservations up while it's in the future
+    @JsonIgnore
+    @Column(name = "reserved_until")
+    private LocalDateTime reservedUntil;
+
+    // Primitive, so devices with an assigned id are still merged instead of persisted
+    @JsonIgnore
+    @Version
+    private long version;
+
+    @JsonIgnore
+    public boolean isAvailable() {
+        return Objects.isNull(latestBookingId) || !Objects.isNull(latestReturnedAt);
+    }
 }
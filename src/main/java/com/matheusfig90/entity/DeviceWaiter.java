@@ -0,0 +1,59 @@
+package com.matheusfig90.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * A user waiting for a booked device. Waiters are granted the device in id order,
+ * in the same transaction as the return of the device.
+ */
+@Data
+@Builder(toBuilder = true)
+@AllArgsConstructor
+@NoArgsConstructor
+@Entity
+@Table(name = "device_waiters", indexes = {
+        @Index(name = "idx_device_waiters_queue", columnList = "device_id, status, id")
+})
+public class DeviceWaiter {
+    public enum Status {
+        WAITING,
+        GRANTED
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "device_waiters_seq")
+    @SequenceGenerator(name = "device_waiters_seq", sequenceName = "device_waiters_seq", allocationSize = 50)
+    private Long id;
+
+    // Plain ids, so waiters are serialized without loading the device or the user
+    @Column(name = "device_id", nullable = false)
+    private Long deviceId;
+
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", length = 10, nullable = false)
+    private Status status;
+
+    private LocalDateTime enqueuedAt;
+    private LocalDateTime grantedAt;
+
+    // The booking created for this waiter once granted
+    private Long bookingId;
+}
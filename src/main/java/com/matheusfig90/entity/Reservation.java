@@ -0,0 +1,51 @@
+package com.matheusfig90.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * A device reserved by a user for the time slot [startsAt, endsAt). The slots of a device never
+ * overlap, which is enforced by an exclusion constraint on PostgreSQL (see the V10 migration).
+ */
+@Data
+@Builder(toBuilder = true)
+@AllArgsConstructor
+@NoArgsConstructor
+@Entity
+@Table(name = "reservations", indexes = {
+        @Index(name = "idx_reservations_device_starts_at", columnList = "device_id, starts_at"),
+        @Index(name = "idx_reservations_ends_at", columnList = "ends_at")
+})
+public class Reservation {
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "reservations_seq")
+    @SequenceGenerator(name = "reservations_seq", sequenceName = "reservations_seq", allocationSize = 50)
+    private Long id;
+
+    // Plain ids, so reservations are serialized without loading the device or the user
+    @Column(name = "device_id", nullable = false)
+    private Long deviceId;
+
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+
+    @Column(name = "starts_at", nullable = false)
+    private LocalDateTime startsAt;
+
+    @Column(name = "ends_at", nullable = false)
+    private LocalDateTime endsAt;
+
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,32 @@
+package com.matheusfig90.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+/**
+ * A device or a user whose usage is rolled up.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Embeddable
+public class UsageSubject implements Serializable {
+    public enum SubjectType {
+        DEVICE,
+        USER
+    }
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "subject_type", length = 6, nullable = false)
+    private SubjectType subjectType;
+
+    @Column(name = "subject_id", nullable = false)
+    private Long subjectId;
+}
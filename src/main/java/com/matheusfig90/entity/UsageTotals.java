@@ -0,0 +1,33 @@
+package com.matheusfig90.entity;
+
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+
+/**
+ * All-time rollup of the bookings of a device or a user, read by primary key by the stats endpoints.
+ */
+@Data
+@Builder(toBuilder = true)
+@AllArgsConstructor
+@NoArgsConstructor
+@Entity
+@Table(name = "usage_totals")
+public class UsageTotals {
+    @EmbeddedId
+    private UsageSubject id;
+
+    private long bookingCount;
+    private long returnedCount;
+    private long bookedSeconds;
+
+    // Consecutive days with bookings, up to lastBookedOn
+    private LocalDate lastBookedOn;
+    private int streakDays;
+}
@@ -1,7 +1,10 @@
 package com.matheusfig90.exceptions;
 
+/**
+ * Expected outcome of a lookup, so it skips the stack trace: it's only ever turned into a 404.
+ */
 public class EntityNotFoundException extends Exception {
     public EntityNotFoundException(String message) {
-        super(message);
+        super(message, null, false, false);
     }
 }
@@ -1,11 +1,14 @@
 package com.matheusfig90.exceptions;
 
+/**
+ * Expected outcome of booking contention, so it skips the stack trace: it's only ever turned into a 400.
+ */
 public class UnavailableDeviceException extends Exception {
     public UnavailableDeviceException(Long deviceId) {
-        super(String.format("The device is not available (ID: %s)", deviceId));
+        this(String.format("The device is not available (ID: %s)", deviceId));
     }
 
     public UnavailableDeviceException(String message) {
-        super(message);
+        super(message, null, false, false);
     }
 }
@@ -0,0 +1,185 @@
+package com.matheusfig90.idempotency;
+
+import com.matheusfig90.idempotency.IdempotencyStore.Entry;
+import com.matheusfig90.idempotency.IdempotencyStore.StoredResponse;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Replays the stored response of a device mutation retried with the same {@code Idempotency-Key},
+ * without executing it again. Only successful responses are stored: a failed request changed
+ * nothing, so its retry is executed again. Keys are scoped to the client address, so clients
+ * picking the same key don't get each other's responses.
+ */
+@Component
+public class IdempotencyFilter extends OncePerRequestFilter {
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+    private static final int MAX_KEY_LENGTH = 255;
+
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
+    public IdempotencyFilter(IdempotencyStore idempotencyStore) {
+        this.idempotencyStore = idempotencyStore;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return HttpMethod.GET.matches(request.getMethod())
+                || Objects.isNull(request.getHeader(IDEMPOTENCY_KEY_HEADER))
+                || !request.getRequestURI().startsWith(request.getContextPath() + "/devices/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String key = request.getHeader(IDEMPOTENCY_KEY_HEADER);
+        if (key.isBlank() || key.length() > MAX_KEY_LENGTH) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), String.format("The %s must have between 1 and %s characters", IDEMPOTENCY_KEY_HEADER, MAX_KEY_LENGTH));
+            return;
+        }
+
+        // The same key can't be reused for another device, operation or body. The body is read
+        // here to be hashed, and read again from memory by the controller
+        BufferedBodyRequest bufferedRequest = new BufferedBodyRequest(request);
+        String fingerprint = request.getMethod() + " " + request.getRequestURI() + " " + sha256(bufferedRequest.body);
+        // Hashed, so the address and the key fit the store whatever their length
+        String clientKey = sha256((request.getRemoteAddr() + " " + key).getBytes(StandardCharsets.UTF_8));
+        Optional<Entry> existing = idempotencyStore.claim(clientKey, fingerprint);
+
+        if (existing.isPresent()) {
+            replay(existing.get(), fingerprint, response);
+            return;
+        }
+
+        ContentCachingResponseWrapper responseWrapper = new ContentCachingResponseWrapper(response);
+        try {
+            filterChain.doFilter(bufferedRequest, responseWrapper);
+        } catch (IOException | ServletException | RuntimeException e) {
+            idempotencyStore.release(clientKey);
+            throw e;
+        }
+
+        if (HttpStatusCode.valueOf(responseWrapper.getStatus()).is2xxSuccessful()) {
+            idempotencyStore.complete(clientKey, fingerprint, new StoredResponse(
+                    responseWrapper.getStatus(),
+                    responseWrapper.getContentType(),
+                    responseWrapper.getContentAsByteArray()
+            ));
+        } else {
+            idempotencyStore.release(clientKey);
+        }
+
+        responseWrapper.copyBodyToResponse();
+    }
+
+    private void replay(Entry entry, String fingerprint, HttpServletResponse response) throws IOException {
+        if (!entry.request().equals(fingerprint)) {
+            response.sendError(HttpStatus.UNPROCESSABLE_ENTITY.value(), String.format("The %s was used for another request", IDEMPOTENCY_KEY_HEADER));
+            return;
+        }
+
+        if (Objects.isNull(entry.response())) {
+            response.sendError(HttpStatus.CONFLICT.value(), String.format("A request with this %s is in progress", IDEMPOTENCY_KEY_HEADER));
+            return;
+        }
+
+        StoredResponse storedResponse = entry.response();
+        response.setStatus(storedResponse.status());
+        response.setHeader(REPLAYED_HEADER, "true");
+        if (Objects.nonNull(storedResponse.contentType())) {
+            response.setContentType(storedResponse.contentType());
+        }
+        response.setContentLength(storedResponse.body().length);
+        response.getOutputStream().write(storedResponse.body());
+    }
+
+    private static String sha256(byte[] body) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required on every Java platform", e);
+        }
+    }
+
+    // The device requests have small JSON bodies, kept in memory for the fingerprint and the controller
+    private static class BufferedBodyRequest extends HttpServletRequestWrapper {
+        private final byte[] body;
+
+        BufferedBodyRequest(HttpServletRequest request) throws IOException {
+            super(request);
+            this.body = request.getInputStream().readAllBytes();
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream input = new ByteArrayInputStream(body);
+
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return input.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return input.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return input.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                // The body is already in memory, so it's all available as soon as the listener is set
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    try {
+                        if (!isFinished()) {
+                            readListener.onDataAvailable();
+                        }
+                        readListener.onAllDataRead();
+                    } catch (IOException e) {
+                        readListener.onError(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            Charset charset = Objects.isNull(getCharacterEncoding()) ? StandardCharsets.UTF_8 : Charset.forName(getCharacterEncoding());
+            return new BufferedReader(new InputStreamReader(getInputStream(), charset));
+        }
+    }
+}
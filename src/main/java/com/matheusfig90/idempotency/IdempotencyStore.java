@@ -0,0 +1,31 @@
+package com.matheusfig90.idempotency;
+
+import java.util.Optional;
+
+/**
+ * Responses of the requests sent with an {@code Idempotency-Key}, kept for a limited time.
+ */
+public interface IdempotencyStore {
+    /**
+     * @param request the method, path and body hash the key was first used for
+     * @param response the stored response, null while the first request is in progress
+     */
+    record Entry(String request, StoredResponse response) {
+    }
+
+    record StoredResponse(int status, String contentType, byte[] body) {
+    }
+
+    /**
+     * Claims the key for the request. Returns empty when the caller owns it and must execute
+     * the request, otherwise the entry of the request which claimed it first.
+     */
+    Optional<Entry> claim(String key, String request);
+
+    void complete(String key, String request, StoredResponse response);
+
+    /**
+     * Forgets a claimed key whose request failed, so it can be retried.
+     */
+    void release(String key);
+}
@@ -0,0 +1,51 @@
+package com.matheusfig90.idempotency;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Single node store. The entries expire after the TTL and the cache is bounded by the size of the
+ * stored responses, so it uses constant memory under any load. Claims are atomic per key only.
+ */
+@Component
+@ConditionalOnProperty(value = "app.idempotency.store", havingValue = "memory", matchIfMissing = true)
+public class InMemoryIdempotencyStore implements IdempotencyStore {
+    private final Cache<String, Entry> entries;
+
+    public InMemoryIdempotencyStore(@Value("${app.idempotency.ttl-seconds:86400}") long ttlSeconds,
+                                    @Value("${app.idempotency.memory-bytes:16777216}") long maxBytes) {
+        this.entries = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .maximumWeight(maxBytes)
+                .weigher((String key, Entry entry) -> weigh(key, entry))
+                .build();
+    }
+
+    @Override
+    public Optional<Entry> claim(String key, String request) {
+        return Optional.ofNullable(entries.asMap().putIfAbsent(key, new Entry(request, null)));
+    }
+
+    @Override
+    public void complete(String key, String request, StoredResponse response) {
+        entries.put(key, new Entry(request, response));
+    }
+
+    @Override
+    public void release(String key) {
+        entries.invalidate(key);
+    }
+
+    private static int weigh(String key, Entry entry) {
+        int bodyLength = Objects.isNull(entry.response()) ? 0 : entry.response().body().length;
+
+        return key.length() + entry.request().length() + bodyLength;
+    }
+}
@@ -0,0 +1,88 @@
+package com.matheusfig90.idempotency;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+/**
+ * Store shared by all the nodes, on the idempotency_keys table (see the V8 migration). The primary
+ * key makes the claim atomic across the nodes, and expired rows are deleted periodically.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(value = "app.idempotency.store", havingValue = "jdbc")
+public class JdbcIdempotencyStore implements IdempotencyStore {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${app.idempotency.ttl-seconds:86400}")
+    private long ttlSeconds;
+
+    // A claim whose node died before completing it is given up after this timeout
+    @Value("${app.idempotency.in-progress-timeout-seconds:60}")
+    private long inProgressTimeoutSeconds;
+
+    public JdbcIdempotencyStore(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public Optional<Entry> claim(String key, String request) {
+        LocalDateTime now = LocalDateTime.now();
+        jdbcTemplate.update(
+                "DELETE FROM idempotency_keys WHERE idempotency_key = ? AND (created_at < ? OR (status IS NULL AND created_at < ?))",
+                key, now.minusSeconds(ttlSeconds), now.minusSeconds(inProgressTimeoutSeconds)
+        );
+
+        try {
+            jdbcTemplate.update("INSERT INTO idempotency_keys (idempotency_key, request, created_at) VALUES (?, ?, ?)", key, request, now);
+
+            return Optional.empty();
+        } catch (DuplicateKeyException e) {
+            return jdbcTemplate.query(
+                    "SELECT request, status, content_type, body FROM idempotency_keys WHERE idempotency_key = ?",
+                    (rs, rowNum) -> {
+                        int status = rs.getInt("status");
+                        StoredResponse response = rs.wasNull()
+                                ? null
+                                : new StoredResponse(status, rs.getString("content_type"), rs.getBytes("body"));
+
+                        return new Entry(rs.getString("request"), response);
+                    },
+                    key
+            ).stream().findFirst().or(() -> Optional.of(new Entry(request, null)));
+        }
+    }
+
+    @Override
+    public void complete(String key, String request, StoredResponse response) {
+        jdbcTemplate.update(
+                "UPDATE idempotency_keys SET status = ?, content_type = ?, body = ? WHERE idempotency_key = ?",
+                response.status(), response.contentType(), response.body(), key
+        );
+    }
+
+    @Override
+    public void release(String key) {
+        jdbcTemplate.update("DELETE FROM idempotency_keys WHERE idempotency_key = ? AND status IS NULL", key);
+    }
+
+    @Scheduled(fixedDelayString = "${app.idempotency.cleanup-ms:60000}")
+    public void deleteExpired() {
+        try {
+            int deleted = jdbcTemplate.update("DELETE FROM idempotency_keys WHERE created_at < ?", LocalDateTime.now().minusSeconds(ttlSeconds));
+            log.debug("Deleted {} expired idempotency keys", deleted);
+        } catch (DataAccessException e) {
+            log.warn("Failed to delete the expired idempotency keys", e);
+        }
+    }
+}
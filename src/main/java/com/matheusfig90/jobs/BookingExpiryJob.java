@@ -0,0 +1,158 @@
+package com.matheusfig90.jobs;
+
+import com.matheusfig90.entity.Device;
+import com.matheusfig90.exceptions.UnavailableDeviceException;
+import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.service.BatchBookingService;
+import com.matheusfig90.service.DeviceService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Returns the bookings held longer than the maximum hold duration. The open bookings are read in
+ * due order from a partial index, so each run only touches the overdue head of the queue, and
+ * they're claimed with SKIP LOCKED, so the job can run on every node. It also hands the devices
+ * to the waiters a reservation skipped on their last return, once the reservation is over.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(value = "app.bookings.expiry.enabled", havingValue = "true")
+public class BookingExpiryJob {
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private BatchBookingService batchBookingService;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${app.bookings.expiry.max-hold-minutes:480}")
+    private long maxHoldMinutes;
+
+    @Value("${app.bookings.expiry.batch-size:100}")
+    private int batchSize;
+
+    @Value("${app.reservations.lead-minutes:30}")
+    private long reservationLeadMinutes;
+
+    private final Counter expired;
+
+    // Seconds the oldest overdue booking has waited past its due time, as of the last run
+    private final AtomicLong lagSeconds = new AtomicLong();
+
+    public BookingExpiryJob(MeterRegistry registry) {
+        this.expired = Counter.builder("bookings.expired")
+                .description("Bookings returned automatically after the maximum hold duration")
+                .register(registry);
+        Gauge.builder("bookings.expiry.lag", lagSeconds, AtomicLong::get)
+                .description("Seconds the oldest overdue booking has waited past its due time")
+                .baseUnit("seconds")
+                .register(registry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.bookings.expiry.poll-ms:10000}")
+    public void scheduledExpire() {
+        try {
+            int count = expire();
+            if (count > 0) {
+                log.info("Returned {} overdue bookings", count);
+            }
+        } catch (DataAccessException e) {
+            log.warn("Failed to return the overdue bookings", e);
+        }
+
+        try {
+            int count = dispatchWaiters();
+            if (count > 0) {
+                log.info("Handed {} devices to their waiters", count);
+            }
+        } catch (DataAccessException e) {
+            log.warn("Failed to hand the devices to their waiters", e);
+        }
+    }
+
+    /**
+     * @return the number of bookings returned by this node
+     */
+    public int expire() {
+        int count = 0;
+
+        while (true) {
+            Integer returned = transactionTemplate.execute(status -> {
+                LocalDateTime now = LocalDateTime.now();
+                List<Device> overdue = deviceRepository.findOverdueForUpdate(now.minusMinutes(maxHoldMinutes), PageRequest.ofSize(batchSize));
+                if (overdue.isEmpty()) {
+                    return 0;
+                }
+
+                try {
+                    return batchBookingService.returnBookedDevices(overdue, now).size();
+                } catch (UnavailableDeviceException e) {
+                    // A device of the batch was returned by its user meanwhile, it's claimed again on the next run
+                    status.setRollbackOnly();
+                    return 0;
+                }
+            });
+
+            count += Objects.requireNonNullElse(returned, 0);
+            if (Objects.isNull(returned) || returned < batchSize) {
+                break;
+            }
+        }
+
+        expired.increment(count);
+        updateLag();
+
+        return count;
+    }
+
+    /**
+     * @return the number of waiters granted a device by this node
+     */
+    public int dispatchWaiters() {
+        Integer granted = transactionTemplate.execute(status -> {
+            LocalDateTime now = LocalDateTime.now();
+            List<Device> devices = deviceRepository.findWithStrandedWaitersForUpdate(now, now.plusMinutes(reservationLeadMinutes), PageRequest.ofSize(batchSize));
+
+            int count = 0;
+            for (Device device : devices) {
+                if (deviceService.handOffToNextWaiter(device).isPresent()) {
+                    count++;
+                }
+            }
+
+            return count;
+        });
+
+        return Objects.requireNonNullElse(granted, 0);
+    }
+
+    private void updateLag() {
+        LocalDateTime dueAt = deviceRepository.findOldestOpenBookedAt()
+                .map(bookedAt -> bookedAt.plusMinutes(maxHoldMinutes))
+                .orElse(null);
+        long lag = Objects.isNull(dueAt) ? 0 : Duration.between(dueAt, LocalDateTime.now()).toSeconds();
+
+        lagSeconds.set(Math.max(0, lag));
+    }
+}
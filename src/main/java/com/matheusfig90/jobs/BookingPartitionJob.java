@@ -0,0 +1,41 @@
+package com.matheusfig90.jobs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the monthly partitions of the bookings table ahead of time (PostgreSQL only,
+ * see the V3 migration), so new bookings never land in the default partition.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(value = "app.bookings.partitions.enabled", havingValue = "true")
+public class BookingPartitionJob {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${app.bookings.partitions.months-ahead:3}")
+    private int monthsAhead;
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(cron = "${app.bookings.partitions.cron:0 0 3 * * *}")
+    public void createPartitions() {
+        try {
+            // Idempotent, so it's safe to run on every node
+            jdbcTemplate.queryForList(
+                    "SELECT create_booking_partitions(CURRENT_DATE, (CURRENT_DATE + make_interval(months => ?))::date)",
+                    monthsAhead
+            );
+        } catch (DataAccessException e) {
+            log.warn("Failed to create the booking partitions", e);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.matheusfig90.jobs;
+
+import com.matheusfig90.entity.Booking;
+import com.matheusfig90.entity.Device;
+import com.matheusfig90.repository.BookingRepository;
+import com.matheusfig90.repository.DeviceRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BinaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the booking state kept on each devices row with the bookings table and repairs
+ * any drift, e.g. after bookings were changed by hand. Devices are walked in chunks by id.
+ */
+@Slf4j
+@Component
+public class DeviceStateReconciliationJob {
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private BookingRepository bookingRepository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${app.devices.reconciliation.chunk-size:500}")
+    private int chunkSize;
+
+    private final Counter repaired;
+
+    public DeviceStateReconciliationJob(MeterRegistry registry) {
+        this.repaired = Counter.builder("devices.state.repaired")
+                .description("Devices whose booking state didn't match the bookings table")
+                .register(registry);
+    }
+
+    @Scheduled(cron = "${app.devices.reconciliation.cron:-}")
+    public void scheduledReconcile() {
+        int count = reconcile();
+        if (count > 0) {
+            log.warn("Repaired the booking state of {} devices", count);
+        }
+    }
+
+    /**
+     * @return the number of devices whose state was repaired
+     */
+    public int reconcile() {
+        int count = 0;
+        long afterId = 0L;
+
+        while (true) {
+            long chunkAfterId = afterId;
+            ChunkResult result = transactionTemplate.execute(status -> reconcileChunk(chunkAfterId, status));
+            if (Objects.isNull(result) || Objects.isNull(result.lastId())) {
+                break;
+            }
+
+            count += result.repaired();
+            afterId = result.lastId();
+        }
+
+        repaired.increment(count);
+
+        return count;
+    }
+
+    private record ChunkResult(Long lastId, int repaired) {
+    }
+
+    private ChunkResult reconcileChunk(long afterId, TransactionStatus status) {
+        List<Device> devices = deviceRepository.findByIdGreaterThanOrderByIdAsc(afterId, PageRequest.ofSize(chunkSize));
+        if (devices.isEmpty()) {
+            return null;
+        }
+
+        // Ties on bookedAt are broken by the highest id
+        Map<Long, Booking> latestBookings = bookingRepository.findLatestBookingOfDevices(devices.stream().map(Device::getId).toList())
+                .stream()
+                .collect(Collectors.toMap(booking -> booking.getDevice().getId(), booking -> booking,
+                        BinaryOperator.maxBy(Comparator.comparing(Booking::getId))));
+
+        int count = 0;
+        for (Device device : devices) {
+            Booking latestBooking = latestBookings.get(device.getId());
+            if (!isInSync(device, latestBooking)) {
+                device.setLatestBookingId(Objects.isNull(latestBooking) ? null : latestBooking.getId());
+                device.setLatestUser(Objects.isNull(latestBooking) ? null : latestBooking.getUser());
+                device.setLatestBookedAt(Objects.isNull(latestBooking) ? null : latestBooking.getBookedAt());
+                device.setLatestReturnedAt(Objects.isNull(latestBooking) ? null : latestBooking.getReturnedAt());
+                count++;
+            }
+        }
+
+        try {
+            deviceRepository.flush();
+        } catch (OptimisticLockingFailureException e) {
+            // A device of the chunk was booked or returned meanwhile, it's checked again on the next run
+            status.setRollbackOnly();
+            return new ChunkResult(devices.get(devices.size() - 1).getId(), 0);
+        }
+
+        return new ChunkResult(devices.get(devices.size() - 1).getId(), count);
+    }
+
+    // Every column copied from the latest booking, the user is compared by id without loading it
+    private boolean isInSync(Device device, Booking latestBooking) {
+        Long latestUserId = Objects.isNull(device.getLatestUser()) ? null : device.getLatestUser().getId();
+
+        if (Objects.isNull(latestBooking)) {
+            return Objects.isNull(device.getLatestBookingId())
+                    && Objects.isNull(latestUserId)
+                    && Objects.isNull(device.getLatestBookedAt())
+                    && Objects.isNull(device.getLatestReturnedAt());
+        }
+
+        return Objects.equals(device.getLatestBookingId(), latestBooking.getId())
+                && Objects.equals(latestUserId, latestBooking.getUser().getId())
+                && isSameTime(device.getLatestBookedAt(), latestBooking.getBookedAt())
+                && isSameTime(device.getLatestReturnedAt(), latestBooking.getReturnedAt());
+    }
+
+    // The columns keep microseconds, a device read from the L2 cache may still hold the nanoseconds it was written with
+    private static boolean isSameTime(LocalDateTime a, LocalDateTime b) {
+        if (Objects.isNull(a) || Objects.isNull(b)) {
+            return Objects.equals(a, b);
+        }
+
+        return a.truncatedTo(ChronoUnit.MICROS).equals(b.truncatedTo(ChronoUnit.MICROS));
+    }
+}
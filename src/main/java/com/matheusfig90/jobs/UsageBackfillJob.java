@@ -0,0 +1,276 @@
+package com.matheusfig90.jobs;
+
+import com.matheusfig90.entity.UsageSubject.SubjectType;
+import com.matheusfig90.service.UsageStatsService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the usage rollups from the booking history. The history is split in date ranges
+ * which are aggregated in parallel, each one writing its own days, then the all-time totals
+ * and streaks are computed from the daily rollups in a single streaming pass.
+ */
+@Slf4j
+@Component
+public class UsageBackfillJob {
+    public record BackfillResult(int chunks, long bookings, long subjects) {
+    }
+
+    // Bookings and returns up to the cutoff, the later ones are applied from their events
+    private static final String CHUNK_QUERY = "SELECT device_id, user_id, booked_at, " +
+            "CASE WHEN returned_at < ? THEN returned_at END AS returned_at FROM bookings " +
+            "WHERE booked_at >= ? AND booked_at < ? AND booked_at < ?";
+
+    private static final String DAILY_QUERY = "SELECT subject_type, subject_id, usage_date, booking_count, returned_count, booked_seconds " +
+            "FROM usage_daily ORDER BY subject_type, subject_id, usage_date";
+
+    private static final String INSERT_DAILY = "INSERT INTO usage_daily " +
+            "(subject_type, subject_id, usage_date, booking_count, returned_count, booked_seconds) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_TOTALS = "INSERT INTO usage_totals " +
+            "(subject_type, subject_id, booking_count, returned_count, booked_seconds, last_booked_on, streak_days) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final int BATCH_SIZE = 500;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private UsageStatsService usageStatsService;
+
+    @Value("${app.stats.backfill.chunk-days:7}")
+    private int chunkDays;
+
+    @Value("${app.stats.backfill.parallelism:4}")
+    private int parallelism;
+
+    @Value("${app.stats.backfill.fetch-size:1000}")
+    private int fetchSize;
+
+    /**
+     * Replaces the rollups with the ones computed from the history up to its start. Book and
+     * return events received while it runs are applied once it's done.
+     */
+    public BackfillResult backfill() {
+        BackfillResult[] result = new BackfillResult[1];
+        usageStatsService.rebuild(cutoff -> result[0] = rebuild(cutoff));
+
+        log.info("Rebuilt the usage rollups of {} subjects from {} bookings in {} chunks",
+                result[0].subjects(), result[0].bookings(), result[0].chunks());
+
+        return result[0];
+    }
+
+    private BackfillResult rebuild(LocalDateTime cutoff) {
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.update("DELETE FROM usage_daily");
+            jdbcTemplate.update("DELETE FROM usage_totals");
+        });
+
+        LocalDateTime[] range = jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement("SELECT MIN(booked_at), MAX(booked_at) FROM bookings WHERE booked_at < ?");
+            statement.setTimestamp(1, Timestamp.valueOf(cutoff));
+
+            return statement;
+        }, resultSet -> {
+            resultSet.next();
+            Timestamp first = resultSet.getTimestamp(1);
+            Timestamp last = resultSet.getTimestamp(2);
+
+            return Objects.isNull(first) ? null : new LocalDateTime[]{first.toLocalDateTime(), last.toLocalDateTime()};
+        });
+        if (Objects.isNull(range)) {
+            return new BackfillResult(0, 0, 0);
+        }
+
+        List<LocalDate> chunkStarts = new ArrayList<>();
+        for (LocalDate day = range[0].toLocalDate(); !day.isAfter(range[1].toLocalDate()); day = day.plusDays(chunkDays)) {
+            chunkStarts.add(day);
+        }
+
+        AtomicLong bookings = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<?>> chunks = new ArrayList<>();
+            for (LocalDate chunkStart : chunkStarts) {
+                chunks.add(executor.submit(() -> bookings.addAndGet(backfillChunk(chunkStart, chunkStart.plusDays(chunkDays), cutoff))));
+            }
+
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while backfilling the usage rollups", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to backfill the usage rollups", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Long subjects = transactionTemplate.execute(status -> buildTotals());
+
+        return new BackfillResult(chunkStarts.size(), bookings.get(), Objects.isNull(subjects) ? 0 : subjects);
+    }
+
+    // Chunks own disjoint days, so their daily rollups are plain inserts
+    private long backfillChunk(LocalDate from, LocalDate to, LocalDateTime cutoff) {
+        Map<List<Object>, long[]> daily = new HashMap<>();
+        AtomicLong bookings = new AtomicLong();
+
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.query(connection -> {
+                PreparedStatement statement = connection.prepareStatement(CHUNK_QUERY, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(fetchSize);
+                statement.setTimestamp(1, Timestamp.valueOf(cutoff));
+                statement.setTimestamp(2, Timestamp.valueOf(from.atStartOfDay()));
+                statement.setTimestamp(3, Timestamp.valueOf(to.atStartOfDay()));
+                statement.setTimestamp(4, Timestamp.valueOf(cutoff));
+
+                return statement;
+            }, resultSet -> {
+                LocalDateTime bookedAt = resultSet.getTimestamp("booked_at").toLocalDateTime();
+                Timestamp returnedAt = resultSet.getTimestamp("returned_at");
+                long returned = Objects.isNull(returnedAt) ? 0 : 1;
+                long seconds = Objects.isNull(returnedAt) ? 0 : Duration.between(bookedAt, returnedAt.toLocalDateTime()).toSeconds();
+
+                add(daily, List.of(SubjectType.DEVICE.name(), resultSet.getLong("device_id"), bookedAt.toLocalDate()), returned, seconds);
+                add(daily, List.of(SubjectType.USER.name(), resultSet.getLong("user_id"), bookedAt.toLocalDate()), returned, seconds);
+                bookings.incrementAndGet();
+            });
+
+            List<Object[]> rows = daily.entrySet().stream()
+                    .map(entry -> new Object[]{
+                            entry.getKey().get(0),
+                            entry.getKey().get(1),
+                            Date.valueOf((LocalDate) entry.getKey().get(2)),
+                            entry.getValue()[0],
+                            entry.getValue()[1],
+                            entry.getValue()[2]
+                    })
+                    .toList();
+            jdbcTemplate.batchUpdate(INSERT_DAILY, rows);
+        });
+
+        return bookings.get();
+    }
+
+    private static void add(Map<List<Object>, long[]> daily, List<Object> key, long returned, long seconds) {
+        long[] usage = daily.computeIfAbsent(key, k -> new long[3]);
+        usage[0]++;
+        usage[1] += returned;
+        usage[2] += seconds;
+    }
+
+    // Streams the daily rollups ordered by subject and day, keeping a single subject in memory
+    private long buildTotals() {
+        List<Object[]> batch = new ArrayList<>();
+        AtomicLong subjects = new AtomicLong();
+        SubjectTotals[] current = new SubjectTotals[1];
+
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(DAILY_QUERY, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+
+            return statement;
+        }, resultSet -> {
+            String subjectType = resultSet.getString("subject_type");
+            long subjectId = resultSet.getLong("subject_id");
+
+            if (Objects.isNull(current[0]) || !current[0].isSubject(subjectType, subjectId)) {
+                if (!Objects.isNull(current[0])) {
+                    addTotals(batch, current[0]);
+                    subjects.incrementAndGet();
+                }
+                current[0] = new SubjectTotals(subjectType, subjectId);
+            }
+
+            current[0].add(resultSet.getDate("usage_date").toLocalDate(), resultSet.getLong("booking_count"),
+                    resultSet.getLong("returned_count"), resultSet.getLong("booked_seconds"));
+        });
+
+        if (!Objects.isNull(current[0])) {
+            addTotals(batch, current[0]);
+            subjects.incrementAndGet();
+        }
+        flushTotals(batch);
+
+        return subjects.get();
+    }
+
+    private void addTotals(List<Object[]> batch, SubjectTotals totals) {
+        batch.add(totals.toRow());
+        if (batch.size() >= BATCH_SIZE) {
+            flushTotals(batch);
+        }
+    }
+
+    private void flushTotals(List<Object[]> batch) {
+        if (!batch.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_TOTALS, batch);
+            batch.clear();
+        }
+    }
+
+    private static final class SubjectTotals {
+        private final String subjectType;
+        private final long subjectId;
+        private long bookingCount;
+        private long returnedCount;
+        private long bookedSeconds;
+        private LocalDate lastBookedOn;
+        private int streakDays;
+
+        private SubjectTotals(String subjectType, long subjectId) {
+            this.subjectType = subjectType;
+            this.subjectId = subjectId;
+        }
+
+        private boolean isSubject(String subjectType, long subjectId) {
+            return this.subjectType.equals(subjectType) && this.subjectId == subjectId;
+        }
+
+        // Days come in order, like in the incremental updates
+        private void add(LocalDate day, long bookings, long returned, long seconds) {
+            bookingCount += bookings;
+            returnedCount += returned;
+            bookedSeconds += seconds;
+
+            if (bookings > 0) {
+                streakDays = !Objects.isNull(lastBookedOn) && lastBookedOn.equals(day.minusDays(1)) ? streakDays + 1 : 1;
+                lastBookedOn = day;
+            }
+        }
+
+        private Object[] toRow() {
+            return new Object[]{subjectType, subjectId, bookingCount, returnedCount, bookedSeconds,
+                    Objects.isNull(lastBookedOn) ? null : Date.valueOf(lastBookedOn), streakDays};
+        }
+    }
+}
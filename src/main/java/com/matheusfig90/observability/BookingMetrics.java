@@ -0,0 +1,52 @@
+package com.matheusfig90.observability;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+/**
+ * Counters for the outcome of the booking requests, exposed as {@code bookings.outcomes}.
+ */
+@Component
+public class BookingMetrics {
+    private final Counter booked;
+    private final Counter alreadyBooked;
+    private final Counter notFound;
+    private final Counter returned;
+    private final Counter notBooked;
+
+    public BookingMetrics(MeterRegistry registry) {
+        this.booked = outcomeCounter(registry, "booked");
+        this.alreadyBooked = outcomeCounter(registry, "already_booked");
+        this.notFound = outcomeCounter(registry, "not_found");
+        this.returned = outcomeCounter(registry, "returned");
+        this.notBooked = outcomeCounter(registry, "not_booked");
+    }
+
+    public void booked(int count) {
+        booked.increment(count);
+    }
+
+    public void alreadyBooked() {
+        alreadyBooked.increment();
+    }
+
+    public void notFound() {
+        notFound.increment();
+    }
+
+    public void returned(int count) {
+        returned.increment(count);
+    }
+
+    public void notBooked() {
+        notBooked.increment();
+    }
+
+    private static Counter outcomeCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("bookings.outcomes")
+                .description("Outcome of the book and return requests")
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+}
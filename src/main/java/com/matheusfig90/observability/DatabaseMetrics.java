@@ -0,0 +1,82 @@
+package com.matheusfig90.observability;
+
+import com.matheusfig90.repository.BookingRepository;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gauges for the devices currently booked and the utilization of the connection pool.
+ * The remaining Hikari metrics ({@code hikaricp.connections.*}) are registered by Spring Boot.
+ */
+@Component
+public class DatabaseMetrics implements MeterBinder {
+    private final BookingRepository bookingRepository;
+    private final DataSource dataSource;
+    private final long bookedCacheNanos;
+
+    // Count of the devices booked, shared by the scrapes within app.metrics.devices-booked.cache-ms
+    private long bookedCountedAt;
+    private double booked = Double.NaN;
+
+    public DatabaseMetrics(BookingRepository bookingRepository, DataSource dataSource,
+                           @Value("${app.metrics.devices-booked.cache-ms:15000}") long bookedCacheMillis) {
+        this.bookingRepository = bookingRepository;
+        this.dataSource = dataSource;
+        this.bookedCacheNanos = TimeUnit.MILLISECONDS.toNanos(bookedCacheMillis);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("devices.booked", this, DatabaseMetrics::devicesBooked)
+                .description("Devices currently booked")
+                .register(registry);
+
+        HikariDataSource hikariDataSource = unwrapHikari();
+        if (Objects.isNull(hikariDataSource)) {
+            return;
+        }
+
+        Gauge.builder("hikaricp.connections.utilization", hikariDataSource, DatabaseMetrics::poolUtilization)
+                .description("Ratio of active connections to the maximum pool size")
+                .tag("pool", String.valueOf(hikariDataSource.getPoolName()))
+                .register(registry);
+    }
+
+    // Counted across all nodes, so it's read from the database rather than from this node's events
+    private synchronized double devicesBooked() {
+        long now = System.nanoTime();
+        if (Double.isNaN(booked) || now - bookedCountedAt >= bookedCacheNanos) {
+            booked = bookingRepository.countByOpenDeviceIdIsNotNull();
+            bookedCountedAt = now;
+        }
+
+        return booked;
+    }
+
+    private HikariDataSource unwrapHikari() {
+        try {
+            return dataSource.isWrapperFor(HikariDataSource.class) ? dataSource.unwrap(HikariDataSource.class) : null;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    private static double poolUtilization(HikariDataSource dataSource) {
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        if (Objects.isNull(pool) || dataSource.getMaximumPoolSize() == 0) {
+            return Double.NaN;
+        }
+
+        return (double) pool.getActiveConnections() / dataSource.getMaximumPoolSize();
+    }
+}
@@ -0,0 +1,58 @@
+package com.matheusfig90.observability;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import net.ttddyy.dsproxy.support.ProxyDataSource;
+import net.ttddyy.dsproxy.support.ProxyDataSourceBuilder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps the data source with a proxy which reports the slow statements to the {@link SlowQueryListener}.
+ * With read replicas, only the primary (routing) data source is wrapped, not the pools behind it.
+ */
+@Component
+public class SlowQueryDataSourcePostProcessor implements BeanPostProcessor {
+    private final boolean enabled;
+    private final long thresholdMillis;
+    private final double sampleRate;
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+    private final ConfigurableListableBeanFactory beanFactory;
+
+    public SlowQueryDataSourcePostProcessor(@Value("${app.slow-query.enabled:true}") boolean enabled,
+                                            @Value("${app.slow-query.threshold-ms:200}") long thresholdMillis,
+                                            @Value("${app.slow-query.sample-rate:1.0}") double sampleRate,
+                                            ObjectProvider<MeterRegistry> meterRegistry,
+                                            ConfigurableListableBeanFactory beanFactory) {
+        this.enabled = enabled;
+        this.thresholdMillis = thresholdMillis;
+        this.sampleRate = sampleRate;
+        this.meterRegistry = meterRegistry;
+        this.beanFactory = beanFactory;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!enabled || !(bean instanceof DataSource dataSource) || bean instanceof ProxyDataSource || !isOutermost(beanName)) {
+            return bean;
+        }
+
+        return ProxyDataSourceBuilder.create(dataSource)
+                .name(beanName)
+                .listener(new SlowQueryListener(thresholdMillis, sampleRate, meterRegistry))
+                .build();
+    }
+
+    // A pool behind the routing data source would count its statements twice, and would no
+    // longer be found by the pool metrics, which look for the HikariDataSource beans
+    private boolean isOutermost(String beanName) {
+        String[] dataSources = beanFactory.getBeanNamesForType(DataSource.class, true, false);
+
+        return dataSources.length == 1
+                || (beanFactory.containsBeanDefinition(beanName) && beanFactory.getBeanDefinition(beanName).isPrimary());
+    }
+}
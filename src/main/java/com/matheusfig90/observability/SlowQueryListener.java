@@ -0,0 +1,55 @@
+package com.matheusfig90.observability;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.listener.QueryExecutionListener;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * Logs the statements slower than a threshold as key/value pairs, sampled to keep the log volume
+ * bounded when the database degrades. Every slow statement is still counted in {@code db.queries.slow}.
+ * Only the SQL is logged, never the bound parameters.
+ */
+@Slf4j
+public class SlowQueryListener implements QueryExecutionListener {
+    private final long thresholdMillis;
+    private final double sampleRate;
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+
+    public SlowQueryListener(long thresholdMillis, double sampleRate, ObjectProvider<MeterRegistry> meterRegistry) {
+        this.thresholdMillis = thresholdMillis;
+        this.sampleRate = sampleRate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void beforeQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+    }
+
+    @Override
+    public void afterQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+        if (execInfo.getElapsedTime() < thresholdMillis) {
+            return;
+        }
+
+        meterRegistry.ifAvailable(registry -> registry.counter("db.queries.slow").increment());
+
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+
+        String sql = queryInfoList.stream()
+                .map(QueryInfo::getQuery)
+                .collect(Collectors.joining("; "));
+
+        log.warn("event=slow_query elapsed_ms={} threshold_ms={} success={} batch={} batch_size={} sql=\"{}\"",
+                execInfo.getElapsedTime(), thresholdMillis, execInfo.isSuccess(), execInfo.isBatch(),
+                execInfo.getBatchSize(), sql.replace('"', '\''));
+    }
+}
@@ -0,0 +1,53 @@
+package com.matheusfig90.outbox;
+
+import com.matheusfig90.entity.OutboxEvent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Posts each batch as NDJSON to {@code app.outbox.http.url}, any status but 2xx fails the batch.
+ */
+@Component
+@ConditionalOnProperty(value = "app.outbox.sink", havingValue = "http")
+public class HttpOutboxSink implements OutboxSink {
+    private final HttpClient httpClient;
+    private final URI url;
+    private final Duration timeout;
+
+    public HttpOutboxSink(@Value("${app.outbox.http.url}") String url,
+                          @Value("${app.outbox.http.timeout-ms:5000}") long timeoutMillis) {
+        this.timeout = Duration.ofMillis(timeoutMillis);
+        this.httpClient = HttpClient.newBuilder().connectTimeout(timeout).build();
+        this.url = URI.create(url);
+    }
+
+    @Override
+    public void send(List<OutboxEvent> events) throws IOException, InterruptedException {
+        String body = events.stream()
+                .map(OutboxEvent::getPayload)
+                .collect(Collectors.joining("\n", "", "\n"));
+
+        HttpRequest request = HttpRequest.newBuilder(url)
+                .timeout(timeout)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_NDJSON_VALUE)
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+
+        HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(String.format("The outbox sink answered %s", response.statusCode()));
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.matheusfig90.outbox;
+
+import com.matheusfig90.entity.OutboxEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Writes each event as a JSON line to the {@code outbox} logger, which can be routed to its own file.
+ */
+@Component
+@ConditionalOnProperty(value = "app.outbox.sink", havingValue = "log", matchIfMissing = true)
+public class LogOutboxSink implements OutboxSink {
+    private static final Logger log = LoggerFactory.getLogger("outbox");
+
+    @Override
+    public void send(List<OutboxEvent> events) {
+        events.forEach(event -> log.info(event.getPayload()));
+    }
+}
@@ -0,0 +1,138 @@
+package com.matheusfig90.outbox;
+
+import com.matheusfig90.entity.OutboxEvent;
+import com.matheusfig90.repository.OutboxEventRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Relays the outbox to the {@link OutboxSink} in batches. Each node claims a batch with SKIP LOCKED,
+ * and an event is only sent once the older events of its device are sent, so the events of a
+ * device are delivered in order, at least once.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(value = "app.outbox.relay.enabled", havingValue = "true")
+public class OutboxRelay {
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private OutboxSink outboxSink;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${app.outbox.relay.batch-size:500}")
+    private int batchSize;
+
+    private final Counter relayed;
+
+    // Age in seconds of the oldest event still in the outbox, as of the last run
+    private final AtomicLong lagSeconds = new AtomicLong();
+
+    public OutboxRelay(MeterRegistry registry) {
+        this.relayed = Counter.builder("outbox.relayed")
+                .description("Events relayed from the outbox")
+                .register(registry);
+        Gauge.builder("outbox.lag", lagSeconds, AtomicLong::get)
+                .description("Age of the oldest event still in the outbox")
+                .baseUnit("seconds")
+                .register(registry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.outbox.relay.poll-ms:1000}")
+    public void scheduledRelay() {
+        try {
+            relay();
+        } catch (DataAccessException | IllegalStateException e) {
+            log.warn("Failed to relay the outbox", e);
+        }
+    }
+
+    /**
+     * @return the number of events relayed by this node
+     */
+    public int relay() {
+        int count = 0;
+
+        while (true) {
+            Integer sent = transactionTemplate.execute(status -> relayBatch());
+            count += Objects.requireNonNullElse(sent, 0);
+
+            // Also stops when events were held back behind older events claimed by another node
+            if (Objects.isNull(sent) || sent < batchSize) {
+                break;
+            }
+        }
+
+        updateLag();
+
+        return count;
+    }
+
+    private int relayBatch() {
+        List<OutboxEvent> claimed = outboxEventRepository.findPendingForUpdate(PageRequest.ofSize(batchSize));
+        if (claimed.isEmpty()) {
+            return 0;
+        }
+
+        Set<Long> deviceIds = claimed.stream().map(OutboxEvent::getDeviceId).collect(Collectors.toSet());
+        List<Long> claimedIds = claimed.stream().map(OutboxEvent::getId).toList();
+        Map<Long, Long> oldestVersionsOutside = outboxEventRepository.findOldestVersionsOutside(deviceIds, claimedIds).stream()
+                .collect(Collectors.toMap(row -> (Long) row[0], row -> (Long) row[1]));
+
+        List<OutboxEvent> ready = claimed.stream()
+                .filter(event -> {
+                    Long oldestOutside = oldestVersionsOutside.get(event.getDeviceId());
+                    return Objects.isNull(oldestOutside) || event.getDeviceVersion() < oldestOutside;
+                })
+                .sorted(Comparator.comparing(OutboxEvent::getDeviceId)
+                        .thenComparingLong(OutboxEvent::getDeviceVersion)
+                        .thenComparing(OutboxEvent::getId))
+                .toList();
+        if (ready.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            outboxSink.send(ready);
+        } catch (Exception e) {
+            // Rolls the claim back, the batch is sent again on the next run
+            throw new IllegalStateException("Failed to send the outbox events", e);
+        }
+
+        outboxEventRepository.deleteAllInBatch(ready);
+        relayed.increment(ready.size());
+
+        return ready.size();
+    }
+
+    private void updateLag() {
+        long lag = outboxEventRepository.findOldestCreatedAt()
+                .map(createdAt -> Duration.between(createdAt, LocalDateTime.now()).toSeconds())
+                .orElse(0L);
+
+        lagSeconds.set(Math.max(0, lag));
+    }
+}
@@ -0,0 +1,13 @@
+package com.matheusfig90.outbox;
+
+import com.matheusfig90.entity.OutboxEvent;
+
+import java.util.List;
+
+/**
+ * Destination of the relayed events. The events of each device are sent in order, and a batch
+ * is sent again if this throws, so receivers must ignore the events they already have.
+ */
+public interface OutboxSink {
+    void send(List<OutboxEvent> events) throws Exception;
+}
@@ -0,0 +1,58 @@
+package com.matheusfig90.outbox;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.matheusfig90.dto.DeviceEvent;
+import com.matheusfig90.entity.Device;
+import com.matheusfig90.entity.OutboxEvent;
+import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.repository.OutboxEventRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.LocalDateTime;
+
+/**
+ * Writes every book and return event to the outbox in the transaction which makes the change,
+ * so exactly the committed changes are relayed, even after a crash.
+ */
+@Component
+public class OutboxWriter {
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    public OutboxWriter(OutboxEventRepository outboxEventRepository, DeviceRepository deviceRepository, ObjectMapper objectMapper) {
+        this.outboxEventRepository = outboxEventRepository;
+        this.deviceRepository = deviceRepository;
+        this.objectMapper = objectMapper;
+    }
+
+    // Before the commit, a failed write rolls the change back with it
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT)
+    public void onDeviceEvent(DeviceEvent event) {
+        // Already in the persistence context, flushed with the change
+        long deviceVersion = deviceRepository.findById(event.deviceId())
+                .map(Device::getVersion)
+                .orElseThrow();
+
+        try {
+            outboxEventRepository.save(OutboxEvent.builder()
+                    .deviceId(event.deviceId())
+                    .deviceVersion(deviceVersion)
+                    .type(event.status().name())
+                    .payload(objectMapper.writeValueAsString(event))
+                    .createdAt(LocalDateTime.now())
+                    .build());
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize the event of device " + event.deviceId(), e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.matheusfig90.ratelimit;
+
+import com.matheusfig90.ratelimit.RateLimiter.Route;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the device requests of each client IP, before the idempotency filter and any database
+ * work. The limits per user are applied by {@link RateLimitRequestBodyAdvice} once the body is read.
+ * Behind a proxy, the client IP is only the remote address when the forwarded headers are applied
+ * ({@code server.forward-headers-strategy}), otherwise all the clients share the proxy's limit.
+ */
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE - 1)
+public class RateLimitFilter extends OncePerRequestFilter {
+    private static final String DEVICES_PATH = "/devices";
+
+    @Autowired
+    private RateLimiter rateLimiter;
+
+    public RateLimitFilter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().startsWith(DEVICES_PATH, request.getContextPath().length());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        long waitNanos = rateLimiter.tryAcquireForClient(Route.of(request), request.getRemoteAddr());
+        if (waitNanos > 0) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds(waitNanos)));
+            response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), "Too many requests, retry later");
+            return;
+        }
+
+        filterChain.doFilter(request, response);
+    }
+
+    static long retryAfterSeconds(long waitNanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+}
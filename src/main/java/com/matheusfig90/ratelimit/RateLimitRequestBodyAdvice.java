@@ -0,0 +1,82 @@
+package com.matheusfig90.ratelimit;
+
+import com.matheusfig90.controllers.requests.BatchBookDevicesRequestBody;
+import com.matheusfig90.controllers.requests.BookDeviceRequestBody;
+import com.matheusfig90.controllers.requests.ReserveDeviceRequestBody;
+import com.matheusfig90.ratelimit.RateLimiter.Route;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ProblemDetail;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.mvc.method.annotation.RequestBodyAdviceAdapter;
+
+import java.lang.reflect.Type;
+import java.util.Objects;
+
+/**
+ * Limits the device requests of each user, keyed by the user id of the request body. Runs once
+ * the body is read and before the controller, so a limited request never reaches the database.
+ */
+@ControllerAdvice
+public class RateLimitRequestBodyAdvice extends RequestBodyAdviceAdapter {
+    // Expected under load, so it skips the stack trace like UnavailableDeviceException
+    static class RateLimitExceededException extends RuntimeException {
+        private final long retryAfterSeconds;
+
+        RateLimitExceededException(long waitNanos) {
+            super("Too many requests for this user, retry later", null, false, false);
+            this.retryAfterSeconds = RateLimitFilter.retryAfterSeconds(waitNanos);
+        }
+    }
+
+    @Autowired
+    private RateLimiter rateLimiter;
+
+    public RateLimitRequestBodyAdvice(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public boolean supports(MethodParameter methodParameter, Type targetType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return targetType == BookDeviceRequestBody.class
+                || targetType == BatchBookDevicesRequestBody.class
+                || targetType == ReserveDeviceRequestBody.class;
+    }
+
+    @Override
+    public Object afterBodyRead(Object body, HttpInputMessage inputMessage, MethodParameter parameter, Type targetType,
+                                Class<? extends HttpMessageConverter<?>> converterType) {
+        Long userId = switch (body) {
+            case BookDeviceRequestBody requestBody -> requestBody.userId();
+            case BatchBookDevicesRequestBody requestBody -> requestBody.userId();
+            case ReserveDeviceRequestBody requestBody -> requestBody.userId();
+            default -> null;
+        };
+        if (Objects.isNull(userId)) {
+            return body;
+        }
+
+        Route route = Route.of(((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getRequest());
+        long waitNanos = rateLimiter.tryAcquireForUser(route, userId);
+        if (waitNanos > 0) {
+            throw new RateLimitExceededException(waitNanos);
+        }
+
+        return body;
+    }
+
+    @ExceptionHandler(RateLimitExceededException.class)
+    public ResponseEntity<ProblemDetail> handleRateLimitExceeded(RateLimitExceededException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.retryAfterSeconds))
+                .body(ProblemDetail.forStatusAndDetail(HttpStatus.TOO_MANY_REQUESTS, e.getMessage()));
+    }
+}
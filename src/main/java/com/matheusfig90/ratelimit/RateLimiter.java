@@ -0,0 +1,149 @@
+package com.matheusfig90.ratelimit;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Token buckets of the device routes, per client IP and per user. Each route has its own limits
+ * ({@code app.rate-limit.<route>.capacity} and {@code .refill-per-second}, a capacity of 0 turns
+ * the limit off). Buckets live in bounded caches and are evicted once idle.
+ */
+@Component
+public class RateLimiter {
+    public enum Route {
+        BOOK,
+        RETURN,
+        WAIT,
+        RESERVE,
+        READ;
+
+        // Compares the request with constants, so classifying it allocates nothing
+        public static Route of(HttpServletRequest request) {
+            String method = request.getMethod();
+            String uri = request.getRequestURI();
+
+            if (HttpMethod.GET.matches(method)) {
+                return READ;
+            }
+            if (uri.endsWith("/book")) {
+                return BOOK;
+            }
+            if (uri.endsWith("/return")) {
+                return RETURN;
+            }
+            if (uri.endsWith("/wait")) {
+                return WAIT;
+            }
+
+            return RESERVE;
+        }
+    }
+
+    private static final long DEFAULT_CAPACITY = 10;
+    private static final double DEFAULT_REFILL_PER_SECOND = 1.0;
+
+    private final class Limits {
+        private final long intervalNanos;
+        private final long capacityNanos;
+        private final Cache<String, TokenBucket> clientBuckets;
+        private final Cache<Long, TokenBucket> userBuckets;
+        private final Counter clientRejections;
+        private final Counter userRejections;
+
+        private Limits(Route route, long capacity, double refillPerSecond, MeterRegistry registry) {
+            this.intervalNanos = (long) (1_000_000_000L / refillPerSecond);
+            this.capacityNanos = intervalNanos * capacity;
+            this.clientBuckets = newCache();
+            this.userBuckets = newCache();
+            this.clientRejections = rejections(route, "client", registry);
+            this.userRejections = rejections(route, "user", registry);
+        }
+
+        private long tryAcquire(TokenBucket bucket) {
+            return bucket.tryAcquire(System.nanoTime(), intervalNanos, capacityNanos);
+        }
+    }
+
+    // Shared, so a bucket lookup doesn't capture anything
+    private static final Function<Object, TokenBucket> NEW_BUCKET = key -> new TokenBucket();
+
+    private final long maxKeys;
+    private final Duration idleTimeout;
+    private final Map<Route, Limits> limits = new EnumMap<>(Route.class);
+
+    public RateLimiter(Environment environment, MeterRegistry registry,
+                       @Value("${app.rate-limit.max-keys:100000}") long maxKeys,
+                       @Value("${app.rate-limit.idle-timeout-seconds:600}") long idleTimeoutSeconds) {
+        this.maxKeys = maxKeys;
+        this.idleTimeout = Duration.ofSeconds(idleTimeoutSeconds);
+
+        for (Route route : Route.values()) {
+            String prefix = "app.rate-limit." + route.name().toLowerCase(Locale.ROOT);
+            long capacity = environment.getProperty(prefix + ".capacity", Long.class, DEFAULT_CAPACITY);
+            double refillPerSecond = environment.getProperty(prefix + ".refill-per-second", Double.class, DEFAULT_REFILL_PER_SECOND);
+            if (capacity > 0 && refillPerSecond > 0) {
+                limits.put(route, new Limits(route, capacity, refillPerSecond, registry));
+            }
+        }
+    }
+
+    /**
+     * @return 0 if the request is allowed, otherwise the nanoseconds to wait before retrying
+     */
+    public long tryAcquireForClient(Route route, String clientAddress) {
+        Limits routeLimits = limits.get(route);
+        if (Objects.isNull(routeLimits)) {
+            return 0;
+        }
+
+        long wait = routeLimits.tryAcquire(routeLimits.clientBuckets.get(clientAddress, NEW_BUCKET));
+        if (wait > 0) {
+            routeLimits.clientRejections.increment();
+        }
+
+        return wait;
+    }
+
+    public long tryAcquireForUser(Route route, Long userId) {
+        Limits routeLimits = limits.get(route);
+        if (Objects.isNull(routeLimits)) {
+            return 0;
+        }
+
+        long wait = routeLimits.tryAcquire(routeLimits.userBuckets.get(userId, NEW_BUCKET));
+        if (wait > 0) {
+            routeLimits.userRejections.increment();
+        }
+
+        return wait;
+    }
+
+    private <K> Cache<K, TokenBucket> newCache() {
+        return Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .expireAfterAccess(idleTimeout)
+                .build();
+    }
+
+    private static Counter rejections(Route route, String key, MeterRegistry registry) {
+        return Counter.builder("rate_limit.rejected")
+                .description("Requests rejected by the rate limiter")
+                .tag("route", route.name().toLowerCase(Locale.ROOT))
+                .tag("key", key)
+                .register(registry);
+    }
+}
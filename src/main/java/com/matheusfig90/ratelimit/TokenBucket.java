@@ -0,0 +1,31 @@
+package com.matheusfig90.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket in its GCRA form: the whole state is the time at which the bucket is full again,
+ * so taking a token is a single compare-and-set, without locks or allocations.
+ */
+final class TokenBucket {
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param intervalNanos time to refill one token
+     * @param capacityNanos time to refill the whole bucket
+     * @return 0 if a token was taken, otherwise the nanoseconds until the next one
+     */
+    long tryAcquire(long now, long intervalNanos, long capacityNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + intervalNanos;
+            long wait = next - now - capacityNanos;
+            if (wait > 0) {
+                return wait;
+            }
+
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+}
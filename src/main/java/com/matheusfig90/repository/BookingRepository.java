@@ -1,12 +1,71 @@
 package com.matheusfig90.repository;
 
+import com.matheusfig90.dto.BookingSummary;
 import com.matheusfig90.entity.Booking;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface BookingRepository extends JpaRepository<Booking, Long> {
+    @EntityGraph(attributePaths = {"device", "user"})
     Optional<Booking> findTopByDeviceIdOrderByBookedAtDesc(Long deviceId);
+
+    @Query("SELECT b FROM Booking b JOIN FETCH b.user WHERE b.device.id IN :deviceIds " +
+            "AND b.bookedAt = (SELECT MAX(l.bookedAt) FROM Booking l WHERE l.device = b.device)")
+    List<Booking> findLatestBookingOfDevices(@Param("deviceIds") Collection<Long> deviceIds);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Booking b SET b.returnedAt = :returnedAt, b.openDeviceId = NULL " +
+            "WHERE b.id = :id AND b.returnedAt IS NULL")
+    int markAsReturned(@Param("id") Long id, @Param("returnedAt") LocalDateTime returnedAt);
+
+    long countByOpenDeviceIdIsNotNull();
+
+    // Keyset pagination on (bookedAt, id), the first page and the following ones. Backed by the
+    // (device_id, booked_at DESC, id DESC) and (user_id, booked_at DESC, id DESC) indexes, so any page is a single seek
+    @Query("SELECT new com.matheusfig90.dto.BookingSummary(b.id, d.id, d.name, u.id, u.name, b.bookedAt, b.returnedAt) " +
+            "FROM Booking b JOIN b.device d JOIN b.user u WHERE d.id = :deviceId " +
+            "ORDER BY b.bookedAt DESC, b.id DESC")
+    List<BookingSummary> findDeviceHistory(@Param("deviceId") Long deviceId, Pageable pageable);
+
+    @Query("SELECT new com.matheusfig90.dto.BookingSummary(b.id, d.id, d.name, u.id, u.name, b.bookedAt, b.returnedAt) " +
+            "FROM Booking b JOIN b.device d JOIN b.user u WHERE d.id = :deviceId " +
+            "AND (b.bookedAt, b.id) < (:bookedAt, :id) " +
+            "ORDER BY b.bookedAt DESC, b.id DESC")
+    List<BookingSummary> findDeviceHistoryBefore(@Param("deviceId") Long deviceId,
+                                                 @Param("bookedAt") LocalDateTime bookedAt,
+                                                 @Param("id") Long id,
+                                                 Pageable pageable);
+
+    @Query("SELECT new com.matheusfig90.dto.BookingSummary(b.id, d.id, d.name, u.id, u.name, b.bookedAt, b.returnedAt) " +
+            "FROM Booking b JOIN b.device d JOIN b.user u WHERE u.id = :userId " +
+            "ORDER BY b.bookedAt DESC, b.id DESC")
+    List<BookingSummary> findUserHistory(@Param("userId") Long userId, Pageable pageable);
+
+    @Query("SELECT new com.matheusfig90.dto.BookingSummary(b.id, d.id, d.name, u.id, u.name, b.bookedAt, b.returnedAt) " +
+            "FROM Booking b JOIN b.device d JOIN b.user u WHERE u.id = :userId " +
+            "AND (b.bookedAt, b.id) < (:bookedAt, :id) " +
+            "ORDER BY b.bookedAt DESC, b.id DESC")
+    List<BookingSummary> findUserHistoryBefore(@Param("userId") Long userId,
+                                               @Param("bookedAt") LocalDateTime bookedAt,
+                                               @Param("id") Long id,
+                                               Pageable pageable);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Booking b SET b.returnedAt = :returnedAt, b.openDeviceId = NULL " +
+            "WHERE b.id IN :ids AND b.returnedAt IS NULL")
+    int markAllAsReturned(@Param("ids") Collection<Long> ids, @Param("returnedAt") LocalDateTime returnedAt);
 }
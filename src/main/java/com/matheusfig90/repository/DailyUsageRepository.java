@@ -0,0 +1,31 @@
+package com.matheusfig90.repository;
+
+import com.matheusfig90.entity.DailyUsage;
+import com.matheusfig90.entity.DailyUsageId;
+import com.matheusfig90.entity.UsageSubject.SubjectType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+import java.util.List;
+
+@Repository
+public interface DailyUsageRepository extends JpaRepository<DailyUsage, DailyUsageId> {
+    @Query("SELECT u FROM DailyUsage u WHERE u.id.subjectType = :subjectType AND u.id.subjectId = :subjectId " +
+            "AND u.id.usageDate >= :from ORDER BY u.id.usageDate")
+    List<DailyUsage> findSince(@Param("subjectType") SubjectType subjectType,
+                               @Param("subjectId") Long subjectId,
+                               @Param("from") LocalDate from);
+
+    @Modifying
+    @Query("UPDATE DailyUsage u SET u.bookingCount = u.bookingCount + :bookings, " +
+            "u.returnedCount = u.returnedCount + :returned, u.bookedSeconds = u.bookedSeconds + :seconds " +
+            "WHERE u.id = :id")
+    int increment(@Param("id") DailyUsageId id,
+                  @Param("bookings") long bookings,
+                  @Param("returned") long returned,
+                  @Param("seconds") long seconds);
+}
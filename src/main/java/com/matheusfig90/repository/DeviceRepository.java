@@ -1,9 +1,75 @@
 package com.matheusfig90.repository;
 
+import com.matheusfig90.dto.DeviceSummary;
 import com.matheusfig90.entity.Device;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+import org.hibernate.LockOptions;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
 @Repository
 public interface DeviceRepository extends JpaRepository<Device, Long> {
+    // Keyset pagination by id, the booking state is read from the devices row itself
+    @Query("SELECT new com.matheusfig90.dto.DeviceSummary(d.id, d.name, u.id, u.name, " +
+            "CASE WHEN d.latestReturnedAt IS NULL THEN d.latestBookedAt END) " +
+            "FROM Device d LEFT JOIN d.latestUser u ON d.latestReturnedAt IS NULL " +
+            "WHERE d.id > :afterId " +
+            "AND (:namePattern IS NULL OR LOWER(d.name) LIKE :namePattern) " +
+            "AND (:available IS NULL " +
+            "OR (:available = true AND (d.latestBookingId IS NULL OR d.latestReturnedAt IS NOT NULL)) " +
+            "OR (:available = false AND d.latestBookingId IS NOT NULL AND d.latestReturnedAt IS NULL)) " +
+            "AND (:bookedByUserId IS NULL OR u.id = :bookedByUserId) " +
+            "ORDER BY d.id")
+    List<DeviceSummary> findSummaries(@Param("afterId") Long afterId,
+                                      @Param("namePattern") String namePattern,
+                                      @Param("available") Boolean available,
+                                      @Param("bookedByUserId") Long bookedByUserId,
+                                      Pageable pageable);
+
+    List<Device> findByIdGreaterThanOrderByIdAsc(Long afterId, Pageable pageable);
+
+    // Open bookings in due order, read from the head of idx_devices_open_booked_at (see the V9 migration).
+    // Locked rows are skipped, so each node running the expiry claims a different batch
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "" + LockOptions.SKIP_LOCKED))
+    @Query("SELECT d FROM Device d WHERE d.latestBookingId IS NOT NULL AND d.latestReturnedAt IS NULL " +
+            "AND d.latestBookedAt < :bookedBefore ORDER BY d.latestBookedAt")
+    List<Device> findOverdueForUpdate(@Param("bookedBefore") LocalDateTime bookedBefore, Pageable pageable);
+
+    // Available devices whose waiters were skipped by a reservation which no longer blocks the device
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "" + LockOptions.SKIP_LOCKED))
+    @Query("SELECT d FROM Device d WHERE d.reservedUntil IS NOT NULL " +
+            "AND (d.latestBookingId IS NULL OR d.latestReturnedAt IS NOT NULL) " +
+            "AND EXISTS (SELECT w.id FROM DeviceWaiter w WHERE w.deviceId = d.id " +
+            "AND w.status = com.matheusfig90.entity.DeviceWaiter.Status.WAITING) " +
+            "AND NOT EXISTS (SELECT r.id FROM Reservation r WHERE r.deviceId = d.id " +
+            "AND r.startsAt < :reservedBefore AND r.endsAt > :now) " +
+            "ORDER BY d.id")
+    List<Device> findWithStrandedWaitersForUpdate(@Param("now") LocalDateTime now,
+                                                  @Param("reservedBefore") LocalDateTime reservedBefore,
+                                                  Pageable pageable);
+
+    @Query("SELECT MIN(d.latestBookedAt) FROM Device d WHERE d.latestBookingId IS NOT NULL AND d.latestReturnedAt IS NULL")
+    Optional<LocalDateTime> findOldestOpenBookedAt();
+
+    // Locked in id order, so concurrent batches over the same devices queue up instead of deadlocking
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT d FROM Device d WHERE d.id IN :ids ORDER BY d.id")
+    List<Device> findAllLockedByIdIn(@Param("ids") Collection<Long> ids);
+
+    // Serializes the wait queue changes of a device with its returns, which update the same row
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    Optional<Device> findLockedById(Long id);
 }
@@ -0,0 +1,23 @@
+package com.matheusfig90.repository;
+
+import com.matheusfig90.entity.DeviceWaiter;
+import com.matheusfig90.entity.DeviceWaiter.Status;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface DeviceWaiterRepository extends JpaRepository<DeviceWaiter, Long> {
+    // Head of the queue, a single seek on the (device_id, status, id) index
+    Optional<DeviceWaiter> findFirstByDeviceIdAndStatusOrderByIdAsc(Long deviceId, Status status);
+
+    Optional<DeviceWaiter> findFirstByDeviceIdAndUserIdAndStatus(Long deviceId, Long userId, Status status);
+
+    @Modifying
+    @Query("DELETE FROM DeviceWaiter w WHERE w.id = :id AND w.status = com.matheusfig90.entity.DeviceWaiter.Status.WAITING")
+    int deleteWaitingById(@Param("id") Long id);
+}
@@ -0,0 +1,38 @@
+package com.matheusfig90.repository;
+
+import com.matheusfig90.entity.OutboxEvent;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+import org.hibernate.LockOptions;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface OutboxEventRepository extends JpaRepository<OutboxEvent, Long> {
+    // Locked rows are skipped, so each node running the relay claims a different batch
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "" + LockOptions.SKIP_LOCKED))
+    @Query("SELECT e FROM OutboxEvent e ORDER BY e.id")
+    List<OutboxEvent> findPendingForUpdate(Pageable pageable);
+
+    // Oldest version of the events of each device outside a claimed batch, a plain read which doesn't wait for the locks
+    @Query("SELECT e.deviceId, MIN(e.deviceVersion) FROM OutboxEvent e " +
+            "WHERE e.deviceId IN :deviceIds AND e.id NOT IN :claimedIds GROUP BY e.deviceId")
+    List<Object[]> findOldestVersionsOutside(@Param("deviceIds") Collection<Long> deviceIds,
+                                             @Param("claimedIds") Collection<Long> claimedIds);
+
+    @Query("SELECT MIN(e.createdAt) FROM OutboxEvent e")
+    Optional<LocalDateTime> findOldestCreatedAt();
+
+    long countByDeviceId(Long deviceId);
+}
@@ -0,0 +1,36 @@
+package com.matheusfig90.repository;
+
+import com.matheusfig90.entity.Reservation;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface ReservationRepository extends JpaRepository<Reservation, Long> {
+    // Slots are half-open, so back-to-back reservations don't overlap
+    @Query("SELECT CASE WHEN COUNT(r) > 0 THEN true ELSE false END FROM Reservation r " +
+            "WHERE r.deviceId = :deviceId AND r.startsAt < :to AND r.endsAt > :from")
+    boolean existsOverlapping(@Param("deviceId") Long deviceId,
+                              @Param("from") LocalDateTime from,
+                              @Param("to") LocalDateTime to);
+
+    @Query("SELECT CASE WHEN COUNT(r) > 0 THEN true ELSE false END FROM Reservation r " +
+            "WHERE r.deviceId = :deviceId AND r.userId <> :userId AND r.startsAt < :to AND r.endsAt > :from")
+    boolean existsOverlappingOfOtherUsers(@Param("deviceId") Long deviceId,
+                                          @Param("userId") Long userId,
+                                          @Param("from") LocalDateTime from,
+                                          @Param("to") LocalDateTime to);
+
+    @Query("SELECT CASE WHEN COUNT(r) > 0 THEN true ELSE false END FROM Reservation r " +
+            "WHERE r.deviceId = :deviceId AND r.userId = :userId AND r.startsAt < :to AND r.endsAt > :from")
+    boolean existsOverlappingOfUser(@Param("deviceId") Long deviceId,
+                                    @Param("userId") Long userId,
+                                    @Param("from") LocalDateTime from,
+                                    @Param("to") LocalDateTime to);
+
+    List<Reservation> findByEndsAtAfter(LocalDateTime endsAfter);
+}
@@ -0,0 +1,30 @@
+package com.matheusfig90.repository;
+
+import com.matheusfig90.entity.UsageSubject;
+import com.matheusfig90.entity.UsageTotals;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+
+@Repository
+public interface UsageTotalsRepository extends JpaRepository<UsageTotals, UsageSubject> {
+    // The streak grows when the previous booked day is the day before, and restarts after a gap.
+    // Days must be applied in order, the SET expressions all read the values before the update
+    @Modifying
+    @Query("UPDATE UsageTotals t SET t.bookingCount = t.bookingCount + :bookings, " +
+            "t.returnedCount = t.returnedCount + :returned, t.bookedSeconds = t.bookedSeconds + :seconds, " +
+            "t.streakDays = CASE WHEN :bookings = 0 OR t.lastBookedOn >= :day THEN t.streakDays " +
+            "WHEN t.lastBookedOn = :previousDay THEN t.streakDays + 1 ELSE 1 END, " +
+            "t.lastBookedOn = CASE WHEN :bookings = 0 OR t.lastBookedOn >= :day THEN t.lastBookedOn ELSE :day END " +
+            "WHERE t.id = :id")
+    int increment(@Param("id") UsageSubject id,
+                  @Param("bookings") long bookings,
+                  @Param("returned") long returned,
+                  @Param("seconds") long seconds,
+                  @Param("day") LocalDate day,
+                  @Param("previousDay") LocalDate previousDay);
+}
@@ -0,0 +1,234 @@
+package com.matheusfig90.service;
+
+import com.matheusfig90.dto.DeviceEvent;
+import com.matheusfig90.entity.Booking;
+import com.matheusfig90.entity.Device;
+import com.matheusfig90.entity.User;
+import com.matheusfig90.exceptions.EntityNotFoundException;
+import com.matheusfig90.exceptions.UnavailableDeviceException;
+import com.matheusfig90.repository.BookingRepository;
+import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Books and returns several devices at once. Devices and users are resolved with set-based
+ * queries and all the bookings are written in a single JDBC batch.
+ */
+@Service
+public class BatchBookingService {
+    public enum BatchMode {
+        // Nothing is written if any device can't be booked or returned
+        ALL_OR_NOTHING,
+        // Devices which can't be booked or returned are reported and skipped
+        BEST_EFFORT
+    }
+
+    public record BatchResult(List<Booking> bookings, Map<Long, String> failures) {
+    }
+
+    @Autowired
+    private BookingRepository bookingRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    public BatchBookingService(BookingRepository bookingRepository, DeviceRepository deviceRepository, UserRepository userRepository,
+                               DeviceService deviceService, TransactionTemplate transactionTemplate,
+                               ApplicationEventPublisher eventPublisher) {
+        this.bookingRepository = bookingRepository;
+        this.deviceRepository = deviceRepository;
+        this.userRepository = userRepository;
+        this.deviceService = deviceService;
+        this.transactionTemplate = transactionTemplate;
+        this.eventPublisher = eventPublisher;
+    }
+
+    public BatchResult bookDevices(Collection<Long> deviceIds, Long userId, BatchMode mode)
+            throws EntityNotFoundException, UnavailableDeviceException {
+        Set<Long> uniqueDeviceIds = new LinkedHashSet<>(deviceIds);
+
+        User user = userRepository.findById(userId)
+                .orElseThrow(() -> new EntityNotFoundException("User not found"));
+
+        Map<Long, Device> devices = deviceRepository.findAllById(uniqueDeviceIds).stream()
+                .collect(Collectors.toMap(Device::getId, Function.identity()));
+
+        Map<Long, String> failures = new LinkedHashMap<>();
+        List<Booking> bookings = new ArrayList<>();
+        LocalDateTime bookedAt = LocalDateTime.now();
+
+        for (Long deviceId : uniqueDeviceIds) {
+            Device device = devices.get(deviceId);
+            if (Objects.isNull(device)) {
+                if (mode == BatchMode.ALL_OR_NOTHING) {
+                    throw new EntityNotFoundException(String.format("Device not found (ID: %s)", deviceId));
+                }
+
+                failures.put(deviceId, "Device not found");
+            } else if (!device.isAvailable()) {
+                if (mode == BatchMode.ALL_OR_NOTHING) {
+                    throw new UnavailableDeviceException(deviceId);
+                }
+
+                failures.put(deviceId, "Device is already booked");
+            } else if (deviceService.isReservedForAnotherUser(device, userId, bookedAt)) {
+                if (mode == BatchMode.ALL_OR_NOTHING) {
+                    throw new UnavailableDeviceException(String.format("Device is reserved by another user (ID: %s)", deviceId));
+                }
+
+                failures.put(deviceId, "Device is reserved by another user");
+            } else {
+                bookings.add(Booking.builder()
+                        .device(device)
+                        .user(user)
+                        .bookedAt(bookedAt)
+                        .build());
+            }
+        }
+
+        List<Booking> savedBookings;
+        try {
+            // A single transaction, so the whole batch is rolled back if any device was booked meanwhile
+            savedBookings = transactionTemplate.execute(status -> saveAll(bookings));
+        } catch (DataIntegrityViolationException | OptimisticLockingFailureException e) {
+            if (e instanceof DataIntegrityViolationException violation && !DeviceService.isOpenBookingConflict(violation)) {
+                throw violation;
+            }
+
+            if (mode == BatchMode.ALL_OR_NOTHING) {
+                throw new UnavailableDeviceException("Some devices were booked by another request");
+            }
+
+            savedBookings = bookOneByOne(bookings, userId, failures);
+        }
+
+        return new BatchResult(savedBookings, failures);
+    }
+
+    @Transactional(rollbackFor = UnavailableDeviceException.class)
+    public BatchResult returnDevices(Collection<Long> deviceIds, BatchMode mode) throws UnavailableDeviceException {
+        Set<Long> uniqueDeviceIds = new LinkedHashSet<>(deviceIds);
+
+        // Checked once locked, so a device returned by another request meanwhile is reported as a failure
+        Map<Long, Device> devices = deviceRepository.findAllLockedByIdIn(uniqueDeviceIds).stream()
+                .collect(Collectors.toMap(Device::getId, Function.identity()));
+
+        Map<Long, String> failures = new LinkedHashMap<>();
+        List<Device> bookedDevices = new ArrayList<>();
+
+        for (Long deviceId : uniqueDeviceIds) {
+            Device device = devices.get(deviceId);
+            if (Objects.isNull(device) || device.isAvailable()) {
+                if (mode == BatchMode.ALL_OR_NOTHING) {
+                    throw new UnavailableDeviceException(String.format("Device is available, no return needed (ID: %s)", deviceId));
+                }
+
+                failures.put(deviceId, "Device is available, no return needed");
+            } else {
+                bookedDevices.add(device);
+            }
+        }
+
+        if (bookedDevices.isEmpty()) {
+            return new BatchResult(List.of(), failures);
+        }
+
+        return new BatchResult(returnBookedDevices(bookedDevices, LocalDateTime.now()), failures);
+    }
+
+    /**
+     * Returns booked devices loaded in the current transaction: one update for all their bookings,
+     * then the device rows in a JDBC batch. The devices are handed over to their next waiters.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public List<Booking> returnBookedDevices(List<Device> bookedDevices, LocalDateTime returnedAt) throws UnavailableDeviceException {
+        List<Long> bookingIds = bookedDevices.stream().map(Device::getLatestBookingId).toList();
+        if (bookingRepository.markAllAsReturned(bookingIds, returnedAt) != bookingIds.size()) {
+            // Rolls back the update, some devices were returned by another request meanwhile
+            throw new UnavailableDeviceException("Some devices were returned by another request");
+        }
+
+        bookedDevices.forEach(device -> device.setLatestReturnedAt(returnedAt));
+
+        try {
+            deviceRepository.flush();
+        } catch (OptimisticLockingFailureException e) {
+            throw new UnavailableDeviceException("Some devices were returned by another request");
+        }
+
+        List<Booking> returnedBookings = bookedDevices.stream()
+                .map(DeviceService::getLatestBookingOrNull)
+                .toList();
+        returnedBookings.forEach(booking -> eventPublisher.publishEvent(DeviceEvent.returned(booking)));
+
+        bookedDevices.forEach(deviceService::handOffToNextWaiter);
+        deviceRepository.flush();
+
+        return returnedBookings;
+    }
+
+    private List<Booking> saveAll(List<Booking> bookings) {
+        List<Booking> savedBookings = bookingRepository.saveAll(bookings);
+
+        // The devices were read before the transaction, their version is checked when they're merged
+        List<Device> devices = savedBookings.stream()
+                .map(booking -> booking.getDevice().toBuilder()
+                        .latestBookingId(booking.getId())
+                        .latestUser(booking.getUser())
+                        .latestBookedAt(booking.getBookedAt())
+                        .latestReturnedAt(null)
+                        .build())
+                .toList();
+        deviceRepository.saveAllAndFlush(devices);
+
+        savedBookings.forEach(booking -> eventPublisher.publishEvent(DeviceEvent.booked(booking)));
+
+        return savedBookings;
+    }
+
+    private List<Booking> bookOneByOne(List<Booking> bookings, Long userId, Map<Long, String> failures) {
+        List<Booking> savedBookings = new ArrayList<>();
+        for (Booking booking : bookings) {
+            Long deviceId = booking.getDevice().getId();
+            try {
+                savedBookings.add(deviceService.bookDevice(deviceId, userId));
+            } catch (EntityNotFoundException | UnavailableDeviceException e) {
+                failures.put(deviceId, e.getMessage());
+            }
+        }
+
+        return savedBookings;
+    }
+}
@@ -0,0 +1,180 @@
+package com.matheusfig90.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Streams the booking history to the response in keyset chunks on (booked_at, id), without
+ * loading entities, so the memory use doesn't depend on the number of rows. Each chunk is read
+ * in a short transaction of its own, so a slow client doesn't keep a transaction open.
+ */
+@Service
+public class BookingExportService {
+    public enum ExportFormat {
+        CSV,
+        // One JSON object per line
+        NDJSON
+    }
+
+    // The bookings after the last one of the previous chunk. The plain lower bound on booked_at
+    // lets PostgreSQL skip the partitions before it
+    private static final String CHUNK_QUERY = "SELECT b.id, b.device_id, d.name AS device_name, b.user_id, u.name AS user_name, " +
+            "b.booked_at, b.returned_at " +
+            "FROM bookings b JOIN devices d ON d.id = b.device_id JOIN users u ON u.id = b.user_id " +
+            "WHERE b.booked_at >= ? AND (b.booked_at, b.id) > (?, ?) AND b.booked_at < ? " +
+            "ORDER BY b.booked_at, b.id LIMIT ?";
+
+    private static final String CSV_HEADER = "booking_id,device_id,device_name,user_id,user_name,booked_at,returned_at";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${app.bookings.export.chunk-size:1000}")
+    private int chunkSize;
+
+    // Read-only, so the chunks are read from the replica when there is one
+    private final TransactionTemplate readOnlyTransactionTemplate;
+
+    public BookingExportService(JdbcTemplate jdbcTemplate, ObjectMapper objectMapper, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+    }
+
+    private record ExportRow(long id, long deviceId, String deviceName, long userId, String userName,
+                             Timestamp bookedAt, Timestamp returnedAt) {
+    }
+
+    /**
+     * Writes the bookings made in [from, to) to the output stream. A chunk's transaction ends before
+     * its rows are written, so the ACCESS SHARE lock of the reads is only held while a chunk is
+     * fetched, and never queues the partition DDL (and the bookings behind it) on a slow client.
+     * The export isn't a single snapshot: bookings made while it runs may or may not be included.
+     */
+    public void export(LocalDateTime from, LocalDateTime to, ExportFormat format, OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        RowWriter rowWriter = format == ExportFormat.CSV ? csvWriter(writer) : ndjsonWriter(writer);
+
+        Timestamp lastBookedAt = Timestamp.valueOf(from);
+        long lastId = 0;
+
+        while (true) {
+            List<ExportRow> chunk = readChunk(Timestamp.valueOf(from), lastBookedAt, lastId, Timestamp.valueOf(to));
+            for (ExportRow row : chunk) {
+                rowWriter.write(row);
+            }
+
+            if (chunk.size() < chunkSize) {
+                break;
+            }
+
+            ExportRow last = chunk.get(chunk.size() - 1);
+            lastBookedAt = last.bookedAt();
+            lastId = last.id();
+        }
+
+        writer.flush();
+    }
+
+    private List<ExportRow> readChunk(Timestamp from, Timestamp lastBookedAt, long lastId, Timestamp to) {
+        List<ExportRow> chunk = readOnlyTransactionTemplate.execute(status -> jdbcTemplate.query(CHUNK_QUERY, (resultSet, rowNum) -> new ExportRow(
+                resultSet.getLong("id"),
+                resultSet.getLong("device_id"),
+                resultSet.getString("device_name"),
+                resultSet.getLong("user_id"),
+                resultSet.getString("user_name"),
+                resultSet.getTimestamp("booked_at"),
+                resultSet.getTimestamp("returned_at")
+        ), from, lastBookedAt, lastId, to, chunkSize));
+
+        return Objects.requireNonNullElse(chunk, List.of());
+    }
+
+    private interface RowWriter {
+        void write(ExportRow row) throws IOException;
+    }
+
+    private RowWriter csvWriter(Writer writer) throws IOException {
+        writer.write(CSV_HEADER);
+        writer.write('\n');
+
+        return row -> {
+            writer.write(String.valueOf(row.id()));
+            writer.write(',');
+            writer.write(String.valueOf(row.deviceId()));
+            writer.write(',');
+            writer.write(csvValue(row.deviceName()));
+            writer.write(',');
+            writer.write(String.valueOf(row.userId()));
+            writer.write(',');
+            writer.write(csvValue(row.userName()));
+            writer.write(',');
+            writer.write(timestampValue(row.bookedAt()));
+            writer.write(',');
+            writer.write(timestampValue(row.returnedAt()));
+            writer.write('\n');
+        };
+    }
+
+    private RowWriter ndjsonWriter(Writer writer) throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(writer);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+
+        return row -> {
+            generator.writeStartObject();
+            generator.writeNumberField("bookingId", row.id());
+            generator.writeNumberField("deviceId", row.deviceId());
+            generator.writeStringField("deviceName", row.deviceName());
+            generator.writeNumberField("userId", row.userId());
+            generator.writeStringField("userName", row.userName());
+            generator.writeStringField("bookedAt", timestampOrNull(row.bookedAt()));
+            generator.writeStringField("returnedAt", timestampOrNull(row.returnedAt()));
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+            // Only moves the generator's buffer into the writer's, the response isn't flushed per row
+            generator.flush();
+        };
+    }
+
+    private static String csvValue(String value) {
+        if (Objects.isNull(value)) {
+            return "";
+        }
+
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static String timestampValue(Timestamp timestamp) {
+        return Objects.isNull(timestamp) ? "" : timestamp.toLocalDateTime().toString();
+    }
+
+    private static String timestampOrNull(Timestamp timestamp) {
+        return Objects.isNull(timestamp) ? null : timestamp.toLocalDateTime().toString();
+    }
+}
@@ -0,0 +1,78 @@
+package com.matheusfig90.service;
+
+import com.matheusfig90.dto.BookingPage;
+import com.matheusfig90.dto.BookingPage.Cursor;
+import com.matheusfig90.dto.BookingSummary;
+import com.matheusfig90.exceptions.EntityNotFoundException;
+import com.matheusfig90.repository.BookingRepository;
+import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Booking history of a device or of a user, newest first. Pages are read with keyset pagination
+ * on (bookedAt, id), so a deep page costs the same index seek as the first one.
+ */
+@Service
+public class BookingHistoryService {
+    @Autowired
+    private BookingRepository bookingRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    public BookingHistoryService(BookingRepository bookingRepository, DeviceRepository deviceRepository, UserRepository userRepository) {
+        this.bookingRepository = bookingRepository;
+        this.deviceRepository = deviceRepository;
+        this.userRepository = userRepository;
+    }
+
+    @Transactional(readOnly = true)
+    public BookingPage getDeviceHistory(Long deviceId, Cursor cursor, int limit) throws EntityNotFoundException {
+        if (deviceRepository.findById(deviceId).isEmpty()) {
+            throw new EntityNotFoundException("Device not found");
+        }
+
+        // One extra row tells whether there is a next page, without a count query
+        PageRequest pageRequest = PageRequest.ofSize(limit + 1);
+        List<BookingSummary> bookings = Objects.isNull(cursor)
+                ? bookingRepository.findDeviceHistory(deviceId, pageRequest)
+                : bookingRepository.findDeviceHistoryBefore(deviceId, cursor.bookedAt(), cursor.id(), pageRequest);
+
+        return toPage(bookings, limit);
+    }
+
+    @Transactional(readOnly = true)
+    public BookingPage getUserHistory(Long userId, Cursor cursor, int limit) throws EntityNotFoundException {
+        if (userRepository.findById(userId).isEmpty()) {
+            throw new EntityNotFoundException("User not found");
+        }
+
+        PageRequest pageRequest = PageRequest.ofSize(limit + 1);
+        List<BookingSummary> bookings = Objects.isNull(cursor)
+                ? bookingRepository.findUserHistory(userId, pageRequest)
+                : bookingRepository.findUserHistoryBefore(userId, cursor.bookedAt(), cursor.id(), pageRequest);
+
+        return toPage(bookings, limit);
+    }
+
+    private BookingPage toPage(List<BookingSummary> bookings, int limit) {
+        if (bookings.size() <= limit) {
+            return new BookingPage(bookings, null);
+        }
+
+        List<BookingSummary> page = bookings.subList(0, limit);
+        BookingSummary last = page.get(limit - 1);
+
+        return new BookingPage(page, new Cursor(last.bookedAt(), last.id()).encode());
+    }
+}
@@ -0,0 +1,66 @@
+package com.matheusfig90.service;
+
+import com.matheusfig90.dto.CacheRegionStats;
+import com.matheusfig90.entity.Device;
+import com.matheusfig90.entity.User;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Statistics and invalidation of the Hibernate second-level cache, which keeps the devices and users.
+ * The counters are only collected with {@code hibernate.generate_statistics}, which is off by default.
+ */
+@Service
+public class CacheService {
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    public CacheService(EntityManagerFactory entityManagerFactory) {
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
+    public List<CacheRegionStats> getStatistics() {
+        Statistics statistics = sessionFactory().getStatistics();
+
+        return Arrays.stream(statistics.getSecondLevelCacheRegionNames())
+                .sorted()
+                .map(region -> toCacheRegionStats(region, statistics.getCacheRegionStatistics(region)))
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    public void evictDevice(Long deviceId) {
+        entityManagerFactory.getCache().evict(Device.class, deviceId);
+        sessionFactory().getCache().evictDefaultQueryRegion();
+    }
+
+    public void evictUser(Long userId) {
+        entityManagerFactory.getCache().evict(User.class, userId);
+        sessionFactory().getCache().evictDefaultQueryRegion();
+    }
+
+    public void evictAll() {
+        sessionFactory().getCache().evictAllRegions();
+    }
+
+    private SessionFactory sessionFactory() {
+        return entityManagerFactory.unwrap(SessionFactory.class);
+    }
+
+    private static CacheRegionStats toCacheRegionStats(String region, CacheRegionStatistics statistics) {
+        if (Objects.isNull(statistics)) {
+            return null;
+        }
+
+        return new CacheRegionStats(region, statistics.getHitCount(), statistics.getMissCount(),
+                statistics.getPutCount(), statistics.getElementCountInMemory());
+    }
+}
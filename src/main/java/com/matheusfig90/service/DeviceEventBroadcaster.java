@@ -0,0 +1,176 @@
+package com.matheusfig90.service;
+
+import com.matheusfig90.dto.DeviceEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes the committed device events to the Server-Sent Events subscribers.
+ *
+ * <p>Publishing never blocks: each subscriber has a bounded buffer which is drained on a virtual
+ * thread, and a subscriber whose buffer is full is disconnected instead of slowing down the others.
+ * The disconnection also runs on a virtual thread, since completing the emitter waits for a send
+ * in progress to the slow client.
+ */
+@Service
+public class DeviceEventBroadcaster {
+    // Sent on idle connections, so proxies keep them open and dead ones are detected
+    private static final Object HEARTBEAT = new Object();
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Counter dropped;
+
+    @Value("${app.devices.events.buffer-size:64}")
+    private int bufferSize;
+
+    @Value("${app.devices.events.timeout-ms:0}")
+    private long timeoutMillis;
+
+    public DeviceEventBroadcaster(MeterRegistry registry) {
+        this.dropped = Counter.builder("devices.events.dropped")
+                .description("Subscribers disconnected because they didn't keep up with the events")
+                .register(registry);
+        Gauge.builder("devices.events.subscribers", subscribers, Set::size)
+                .register(registry);
+    }
+
+    /**
+     * @param deviceIds devices whose events are sent, all the devices if null or empty
+     */
+    public SseEmitter subscribe(Collection<Long> deviceIds) {
+        SseEmitter emitter = createEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(emitter,
+                Objects.isNull(deviceIds) || deviceIds.isEmpty() ? Set.of() : Set.copyOf(deviceIds));
+
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+
+        return emitter;
+    }
+
+    SseEmitter createEmitter(long timeoutMillis) {
+        return new SseEmitter(timeoutMillis);
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+    public void publish(DeviceEvent event) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.accepts(event)) {
+                subscriber.offer(event);
+            }
+        }
+    }
+
+    @Scheduled(fixedRateString = "${app.devices.events.heartbeat-ms:30000}")
+    public void heartbeat() {
+        subscribers.forEach(subscriber -> subscriber.offer(HEARTBEAT));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+        executor.shutdownNow();
+    }
+
+    private final class Subscriber {
+        private final SseEmitter emitter;
+        private final Set<Long> deviceIds;
+        private final BlockingQueue<Object> buffer = new ArrayBlockingQueue<>(bufferSize);
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final AtomicBoolean disconnected = new AtomicBoolean();
+
+        private Subscriber(SseEmitter emitter, Set<Long> deviceIds) {
+            this.emitter = emitter;
+            this.deviceIds = deviceIds;
+        }
+
+        private boolean accepts(DeviceEvent event) {
+            return deviceIds.isEmpty() || deviceIds.contains(event.deviceId());
+        }
+
+        private void offer(Object event) {
+            if (disconnected.get()) {
+                return;
+            }
+
+            if (!buffer.offer(event)) {
+                drop();
+                return;
+            }
+
+            scheduleDrain();
+        }
+
+        // Removed right away, completed once the drain stuck in a send to the client gives up
+        private void drop() {
+            if (disconnected.compareAndSet(false, true)) {
+                subscribers.remove(this);
+                dropped.increment();
+                buffer.clear();
+                executor.execute(emitter::complete);
+            }
+        }
+
+        // At most one drain per subscriber at a time, so its events are sent in order
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                Object event;
+                while (!disconnected.get() && (event = buffer.poll()) != null) {
+                    emitter.send(toSseEvent(event));
+                }
+            } catch (IOException | IllegalStateException e) {
+                // The client is gone or the emitter was completed
+                subscribers.remove(this);
+                buffer.clear();
+            } finally {
+                draining.set(false);
+            }
+
+            // An event offered while the drain was finishing
+            if (!buffer.isEmpty() && subscribers.contains(this)) {
+                scheduleDrain();
+            }
+        }
+
+        private SseEmitter.SseEventBuilder toSseEvent(Object event) {
+            if (event == HEARTBEAT) {
+                return SseEmitter.event().comment("heartbeat");
+            }
+
+            DeviceEvent deviceEvent = (DeviceEvent) event;
+            return SseEmitter.event()
+                    .name(deviceEvent.status().name().toLowerCase(Locale.ROOT))
+                    .data(deviceEvent, MediaType.APPLICATION_JSON);
+        }
+    }
+}
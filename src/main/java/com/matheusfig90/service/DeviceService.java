@@ -1,17 +1,35 @@
 package com.matheusfig90.service;
 
+import com.matheusfig90.dto.DeviceEvent;
+import com.matheusfig90.dto.DevicePage;
+import com.matheusfig90.dto.DeviceStatus;
+import com.matheusfig90.dto.DeviceSummary;
 import com.matheusfig90.entity.Booking;
 import com.matheusfig90.entity.Device;
+import com.matheusfig90.entity.DeviceWaiter;
+import com.matheusfig90.entity.DeviceWaiter.Status;
 import com.matheusfig90.entity.User;
 import com.matheusfig90.exceptions.EntityNotFoundException;
 import com.matheusfig90.exceptions.UnavailableDeviceException;
 import com.matheusfig90.repository.BookingRepository;
 import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.repository.DeviceWaiterRepository;
+import com.matheusfig90.repository.ReservationRepository;
 import com.matheusfig90.repository.UserRepository;
+import org.hibernate.Hibernate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -30,46 +48,190 @@ public class DeviceService {
     @Autowired
     private UserRepository userRepository;
 
-    public DeviceService(BookingRepository bookingRepository, DeviceRepository deviceRepository, UserRepository userRepository) {
+    @Autowired
+    private DeviceWaiterRepository deviceWaiterRepository;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    private static final List<String> OPEN_BOOKING_CONSTRAINTS = List.of("uk_bookings_open_device", "open_bookings_pkey");
+
+    // A reservation of another user starting within this time blocks new bookings of the device
+    @Value("${app.reservations.lead-minutes:30}")
+    private long reservationLeadMinutes;
+
+    public DeviceService(BookingRepository bookingRepository, DeviceRepository deviceRepository, UserRepository userRepository,
+                         DeviceWaiterRepository deviceWaiterRepository, ReservationRepository reservationRepository,
+                         ApplicationEventPublisher eventPublisher) {
         this.bookingRepository = bookingRepository;
         this.deviceRepository = deviceRepository;
         this.userRepository = userRepository;
+        this.deviceWaiterRepository = deviceWaiterRepository;
+        this.reservationRepository = reservationRepository;
+        this.eventPublisher = eventPublisher;
    }
 
+   @Transactional(readOnly = true)
    public DeviceInfo getInfo(Long deviceId) throws EntityNotFoundException {
         Device device = getDevice(deviceId);
-        Booking latestBooking = getLatestBookingOrNull(deviceId);
 
-        return new DeviceInfo(device, latestBooking, isDeviceAvailable(latestBooking));
+        return new DeviceInfo(device, getLatestBookingOrNull(device), device.isAvailable());
    }
 
+    // Bumped on every booking and return of the device, so it identifies the state of its info.
+    // A primary key read, usually answered by the second-level cache
+    @Transactional(readOnly = true)
+    public long getVersion(Long deviceId) throws EntityNotFoundException {
+        return getDevice(deviceId).getVersion();
+    }
+
+    @Transactional(readOnly = true)
+    public DevicePage listDevices(Long afterId, int limit, String name, DeviceStatus status, Long bookedByUserId) {
+        String namePattern = toNamePattern(name);
+        Boolean available = Objects.isNull(status) ? null : status == DeviceStatus.AVAILABLE;
+
+        // One extra row tells whether there is a next page, without a count query
+        List<DeviceSummary> devices = deviceRepository.findSummaries(
+                Objects.isNull(afterId) ? 0L : afterId,
+                namePattern,
+                available,
+                bookedByUserId,
+                PageRequest.ofSize(limit + 1)
+        );
+
+        if (devices.size() <= limit) {
+            return new DevicePage(devices, null);
+        }
+
+        List<DeviceSummary> page = devices.subList(0, limit);
+        return new DevicePage(page, page.get(limit - 1).id());
+    }
+
+    @Transactional(rollbackFor = {EntityNotFoundException.class, UnavailableDeviceException.class})
     public Booking bookDevice(Long deviceId, Long userId) throws EntityNotFoundException, UnavailableDeviceException {
         Device device = getDevice(deviceId);
         User user = getUser(userId);
 
-        Booking latestBooking = getLatestBookingOrNull(deviceId);
-        if (!isDeviceAvailable(latestBooking)) {
+        if (!device.isAvailable()) {
             throw new UnavailableDeviceException("Device is already booked");
         }
 
-        Booking booking = Booking.builder()
-                .device(device)
-                .user(user)
-                .bookedAt(LocalDateTime.now())
-                .build();
+        LocalDateTime now = LocalDateTime.now();
+        if (isReservedForAnotherUser(device, userId, now)) {
+            throw new UnavailableDeviceException("Device is reserved by another user");
+        }
+
+        if (hasWaitersAhead(device, userId, now)) {
+            throw new UnavailableDeviceException("Device is held for the users waiting for it, join the wait queue");
+        }
+
+        Booking booking = book(device, user);
+
+        // Either the open booking constraint or the device version rejects the
+        // booking if another request booked the device first
+        try {
+            deviceRepository.flush();
+        } catch (OptimisticLockingFailureException e) {
+            throw new UnavailableDeviceException("Device is already booked");
+        } catch (DataIntegrityViolationException e) {
+            if (!isOpenBookingConflict(e)) {
+                throw e;
+            }
+
+            throw new UnavailableDeviceException("Device is already booked");
+        }
+
+        // Delivered to the subscribers once the transaction commits
+        eventPublisher.publishEvent(DeviceEvent.booked(booking));
 
-        return bookingRepository.save(booking);
+        return booking;
     }
 
+    @Transactional(rollbackFor = UnavailableDeviceException.class)
     public Booking returnDevice(Long deviceId) throws UnavailableDeviceException {
-        Booking latestBooking = getLatestBookingOrNull(deviceId);
-        if (isDeviceAvailable(latestBooking)) {
+        // The device is locked before its booking, in the same order as the expiry job and the batch returns,
+        // so a concurrent return waits here and then finds the device available
+        Optional<Device> device = deviceRepository.findLockedById(deviceId);
+        if (device.isEmpty() || device.get().isAvailable()) {
             throw new UnavailableDeviceException("Device is available, no return needed");
         }
 
-        latestBooking.setReturnedAt(LocalDateTime.now());
+        LocalDateTime returnedAt = LocalDateTime.now();
+
+        // Only one return can close the booking, the others don't update any row
+        if (bookingRepository.markAsReturned(device.get().getLatestBookingId(), returnedAt) == 0) {
+            throw new UnavailableDeviceException("Device is available, no return needed");
+        }
+
+        device.get().setLatestReturnedAt(returnedAt);
+
+        try {
+            deviceRepository.flush();
+        } catch (OptimisticLockingFailureException e) {
+            throw new UnavailableDeviceException("Device is available, no return needed");
+        }
 
-        return bookingRepository.save(latestBooking);
+        Booking returnedBooking = getLatestBookingOrNull(device.get());
+        eventPublisher.publishEvent(DeviceEvent.returned(returnedBooking));
+
+        // The device row is locked, so no waiter can be enqueued meanwhile
+        handOffToNextWaiter(device.get());
+
+        // Rolls back the return too, so the device isn't left available while someone is waiting for it
+        try {
+            deviceRepository.flush();
+        } catch (OptimisticLockingFailureException e) {
+            throw new UnavailableDeviceException("Device could not be handed off to the next waiter, try again");
+        } catch (DataIntegrityViolationException e) {
+            if (!isOpenBookingConflict(e)) {
+                throw e;
+            }
+
+            throw new UnavailableDeviceException("Device could not be handed off to the next waiter, try again");
+        }
+
+        return returnedBooking;
+    }
+
+    /**
+     * Books a returned device for the head of its wait queue, if any. Changes are flushed by the caller.
+     * Like a booking request, the head waiter keeps waiting while another user reserved the device.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Optional<Booking> handOffToNextWaiter(Device device) {
+        Optional<DeviceWaiter> waiter = deviceWaiterRepository.findFirstByDeviceIdAndStatusOrderByIdAsc(device.getId(), Status.WAITING);
+        if (waiter.isEmpty() || isReservedForAnotherUser(device, waiter.get().getUserId(), LocalDateTime.now())) {
+            return Optional.empty();
+        }
+
+        Booking booking = book(device, userRepository.getReferenceById(waiter.get().getUserId()));
+
+        waiter.get().setStatus(Status.GRANTED);
+        waiter.get().setGrantedAt(booking.getBookedAt());
+        waiter.get().setBookingId(booking.getId());
+
+        eventPublisher.publishEvent(DeviceEvent.booked(booking));
+        eventPublisher.publishEvent(waiter.get());
+
+        return Optional.of(booking);
+    }
+
+    private Booking book(Device device, User user) {
+        Booking booking = bookingRepository.save(Booking.builder()
+                .device(device)
+                .user(user)
+                .bookedAt(LocalDateTime.now())
+                .build());
+
+        device.setLatestBookingId(booking.getId());
+        device.setLatestUser(user);
+        device.setLatestBookedAt(booking.getBookedAt());
+        device.setLatestReturnedAt(null);
+
+        return booking;
     }
 
     private Device getDevice(Long deviceId) throws EntityNotFoundException {
@@ -90,16 +252,67 @@ public class DeviceService {
         return user.get();
     }
 
-    private Booking getLatestBookingOrNull(Long deviceId) {
-        Optional<Booking> latestBooking = bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(deviceId);
-        if (latestBooking.isEmpty()) {
-            return null;
+    /**
+     * Whether another user reserved the device from now or within the lead time. The reservations
+     * are only looked up while the device has one in the future.
+     */
+    public boolean isReservedForAnotherUser(Device device, Long userId, LocalDateTime now) {
+        if (Objects.isNull(device.getReservedUntil()) || !device.getReservedUntil().isAfter(now)) {
+            return false;
+        }
+
+        return reservationRepository.existsOverlappingOfOtherUsers(device.getId(), userId, now, now.plusMinutes(reservationLeadMinutes));
+    }
+
+    /**
+     * Whether users are still waiting for the available device. A reservation may have skipped them on the
+     * last return, they're served first by the expiry job, and only the user of the reservation books before
+     * them. Waiters are only left behind by reservations, so the queue isn't looked up for the other devices.
+     */
+    public boolean hasWaitersAhead(Device device, Long userId, LocalDateTime now) {
+        if (Objects.isNull(device.getReservedUntil())
+                || deviceWaiterRepository.findFirstByDeviceIdAndStatusOrderByIdAsc(device.getId(), Status.WAITING).isEmpty()) {
+            return false;
+        }
+
+        return !reservationRepository.existsOverlappingOfUser(device.getId(), userId, now, now.plusMinutes(reservationLeadMinutes));
+    }
+
+    /**
+     * Whether the violation comes from the single open booking per device (the unique constraint on H2,
+     * the open_bookings table on PostgreSQL), rather than from an unrelated constraint.
+     */
+    static boolean isOpenBookingConflict(DataIntegrityViolationException e) {
+        for (Throwable cause = e; !Objects.isNull(cause); cause = cause.getCause()) {
+            String message = Objects.toString(cause.getMessage(), "").toLowerCase(Locale.ROOT);
+            if (OPEN_BOOKING_CONSTRAINTS.stream().anyMatch(message::contains)) {
+                return true;
+            }
         }
 
-        return latestBooking.get();
+        return false;
+    }
+
+    static String toNamePattern(String name) {
+        return Objects.isNull(name) || name.isBlank()
+                ? null
+                : "%" + name.trim().toLowerCase(Locale.ROOT) + "%";
     }
 
-    private Boolean isDeviceAvailable(Booking latestBooking) {
-        return Objects.isNull(latestBooking) || !Objects.isNull(latestBooking.getReturnedAt());
+    static Booking getLatestBookingOrNull(Device device) {
+        if (Objects.isNull(device.getLatestBookingId())) {
+            return null;
+        }
+
+        // Usually a second-level cache hit, it's initialized here as it's serialized outside the transaction
+        Hibernate.initialize(device.getLatestUser());
+
+        return Booking.builder()
+                .id(device.getLatestBookingId())
+                .device(device)
+                .user(device.getLatestUser())
+                .bookedAt(device.getLatestBookedAt())
+                .returnedAt(device.getLatestReturnedAt())
+                .build();
     }
 }
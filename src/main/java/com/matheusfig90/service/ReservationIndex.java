@@ -0,0 +1,84 @@
+package com.matheusfig90.service;
+
+import com.matheusfig90.entity.Reservation;
+import com.matheusfig90.repository.ReservationRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory index of the upcoming reservations, for the availability search. The reservations of
+ * a device are sorted by start and never overlap, so the only one which can overlap a time slot
+ * is the last one starting before its end: each check is a single O(log n) lookup.
+ * The reservations committed by this node are applied at once, the others with the next refresh,
+ * so the search is advisory and the reservations themselves are checked in the database.
+ */
+@Slf4j
+@Component
+public class ReservationIndex {
+    public record Change(Reservation reservation, boolean cancelled) {
+    }
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    private volatile Map<Long, NavigableMap<LocalDateTime, Reservation>> reservationsByDevice = new ConcurrentHashMap<>();
+
+    public ReservationIndex(ReservationRepository reservationRepository) {
+        this.reservationRepository = reservationRepository;
+    }
+
+    public boolean isFree(Long deviceId, LocalDateTime from, LocalDateTime to) {
+        NavigableMap<LocalDateTime, Reservation> reservations = reservationsByDevice.get(deviceId);
+        if (Objects.isNull(reservations)) {
+            return true;
+        }
+
+        Map.Entry<LocalDateTime, Reservation> candidate = reservations.lowerEntry(to);
+        return Objects.isNull(candidate) || !candidate.getValue().getEndsAt().isAfter(from);
+    }
+
+    // Also drops the reservations which ended
+    @Scheduled(fixedDelayString = "${app.reservations.index-refresh-ms:30000}")
+    public void refresh() {
+        try {
+            Map<Long, NavigableMap<LocalDateTime, Reservation>> loaded = new ConcurrentHashMap<>();
+            reservationRepository.findByEndsAtAfter(LocalDateTime.now())
+                    .forEach(reservation -> add(loaded, reservation));
+
+            reservationsByDevice = loaded;
+        } catch (DataAccessException e) {
+            log.warn("Failed to refresh the reservation index", e);
+        }
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+    public void onChange(Change change) {
+        Reservation reservation = change.reservation();
+        if (!change.cancelled()) {
+            add(reservationsByDevice, reservation);
+            return;
+        }
+
+        NavigableMap<LocalDateTime, Reservation> reservations = reservationsByDevice.get(reservation.getDeviceId());
+        if (!Objects.isNull(reservations)) {
+            reservations.remove(reservation.getStartsAt());
+        }
+    }
+
+    private static void add(Map<Long, NavigableMap<LocalDateTime, Reservation>> index, Reservation reservation) {
+        index.computeIfAbsent(reservation.getDeviceId(), deviceId -> new ConcurrentSkipListMap<>())
+                .put(reservation.getStartsAt(), reservation);
+    }
+}
@@ -0,0 +1,162 @@
+package com.matheusfig90.service;
+
+import com.matheusfig90.dto.DevicePage;
+import com.matheusfig90.dto.DeviceSummary;
+import com.matheusfig90.entity.Device;
+import com.matheusfig90.entity.Reservation;
+import com.matheusfig90.exceptions.EntityNotFoundException;
+import com.matheusfig90.exceptions.UnavailableDeviceException;
+import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.repository.ReservationRepository;
+import com.matheusfig90.repository.UserRepository;
+import com.matheusfig90.service.ReservationIndex.Change;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Reservations of devices for future time slots, and the search of the devices free in a slot.
+ * An open booking is expected to last the maximum hold duration, after which the expiry job
+ * returns it, so a booked device is free for the slots starting after that.
+ */
+@Service
+public class ReservationService {
+    private static final int SCAN_SIZE = 500;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private ReservationIndex reservationIndex;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Value("${app.bookings.expiry.max-hold-minutes:480}")
+    private long maxHoldMinutes;
+
+    public ReservationService(ReservationRepository reservationRepository, DeviceRepository deviceRepository, UserRepository userRepository,
+                              ReservationIndex reservationIndex, ApplicationEventPublisher eventPublisher) {
+        this.reservationRepository = reservationRepository;
+        this.deviceRepository = deviceRepository;
+        this.userRepository = userRepository;
+        this.reservationIndex = reservationIndex;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @Transactional(rollbackFor = {EntityNotFoundException.class, UnavailableDeviceException.class})
+    public Reservation reserve(Long deviceId, Long userId, LocalDateTime startsAt, LocalDateTime endsAt)
+            throws EntityNotFoundException, UnavailableDeviceException {
+        // Serializes the reservations of the device, the exclusion constraint is the last line of defense
+        Device device = deviceRepository.findLockedById(deviceId)
+                .orElseThrow(() -> new EntityNotFoundException("Device not found"));
+        if (!userRepository.existsById(userId)) {
+            throw new EntityNotFoundException("User not found");
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        if (!device.isAvailable() && isBookedAt(device.getLatestBookedAt(), startsAt, now)) {
+            throw new UnavailableDeviceException("Device is booked at the start of this time slot");
+        }
+
+        if (reservationRepository.existsOverlapping(deviceId, startsAt, endsAt)) {
+            throw new UnavailableDeviceException("Device is already reserved in this time slot");
+        }
+
+        Reservation reservation = reservationRepository.save(Reservation.builder()
+                .deviceId(deviceId)
+                .userId(userId)
+                .startsAt(startsAt)
+                .endsAt(endsAt)
+                .createdAt(now)
+                .build());
+
+        if (Objects.isNull(device.getReservedUntil()) || endsAt.isAfter(device.getReservedUntil())) {
+            device.setReservedUntil(endsAt);
+        }
+
+        try {
+            deviceRepository.flush();
+        } catch (DataIntegrityViolationException | OptimisticLockingFailureException e) {
+            throw new UnavailableDeviceException("Device is already reserved in this time slot");
+        }
+
+        eventPublisher.publishEvent(new Change(reservation, false));
+
+        return reservation;
+    }
+
+    @Transactional(rollbackFor = EntityNotFoundException.class)
+    public void cancel(Long reservationId) throws EntityNotFoundException {
+        Reservation reservation = reservationRepository.findById(reservationId)
+                .orElseThrow(() -> new EntityNotFoundException("Reservation not found"));
+
+        // The device keeps its reservedUntil, bookings only check the reservations a bit longer
+        reservationRepository.delete(reservation);
+        eventPublisher.publishEvent(new Change(reservation, true));
+    }
+
+    /**
+     * Devices free during the whole slot, by id. The devices are scanned in chunks until a page is
+     * filled, and each one is checked against the in-memory reservation index.
+     */
+    @Transactional(readOnly = true)
+    public DevicePage findAvailableDevices(LocalDateTime from, LocalDateTime to, String name, Long afterId, int limit) {
+        String namePattern = DeviceService.toNamePattern(name);
+        LocalDateTime now = LocalDateTime.now();
+        List<DeviceSummary> available = new ArrayList<>();
+        long scanAfterId = Objects.isNull(afterId) ? 0L : afterId;
+
+        while (available.size() <= limit) {
+            List<DeviceSummary> devices = deviceRepository.findSummaries(scanAfterId, namePattern, null, null, PageRequest.ofSize(SCAN_SIZE));
+
+            for (DeviceSummary device : devices) {
+                if (!isBookedAt(device.bookedAt(), from, now) && reservationIndex.isFree(device.id(), from, to)) {
+                    available.add(device);
+                    if (available.size() > limit) {
+                        break;
+                    }
+                }
+            }
+
+            if (devices.size() < SCAN_SIZE) {
+                break;
+            }
+            scanAfterId = devices.get(devices.size() - 1).id();
+        }
+
+        // One extra device tells whether there is a next page
+        if (available.size() <= limit) {
+            return new DevicePage(available, null);
+        }
+
+        List<DeviceSummary> page = available.subList(0, limit);
+        return new DevicePage(page, page.get(limit - 1).id());
+    }
+
+    // Whether an open booking made at bookedAt still holds the device at the given time
+    private boolean isBookedAt(LocalDateTime bookedAt, LocalDateTime at, LocalDateTime now) {
+        if (Objects.isNull(bookedAt)) {
+            return false;
+        }
+
+        LocalDateTime expectedReturn = bookedAt.plusMinutes(maxHoldMinutes);
+        return at.isBefore(expectedReturn.isAfter(now) ? expectedReturn : now);
+    }
+}
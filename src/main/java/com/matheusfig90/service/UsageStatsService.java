@@ -0,0 +1,292 @@
+package com.matheusfig90.service;
+
+import com.matheusfig90.dto.DeviceEvent;
+import com.matheusfig90.dto.DeviceStatus;
+import com.matheusfig90.dto.UsageStats;
+import com.matheusfig90.dto.UsageStats.DailyUsageStats;
+import com.matheusfig90.entity.DailyUsage;
+import com.matheusfig90.entity.DailyUsageId;
+import com.matheusfig90.entity.UsageSubject;
+import com.matheusfig90.entity.UsageSubject.SubjectType;
+import com.matheusfig90.entity.UsageTotals;
+import com.matheusfig90.exceptions.EntityNotFoundException;
+import com.matheusfig90.repository.DailyUsageRepository;
+import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.repository.UsageTotalsRepository;
+import com.matheusfig90.repository.UserRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Incremental usage rollups of the devices and users. The committed book and return events are
+ * accumulated in memory and applied to the daily and all-time rollups in one transaction every
+ * few seconds, so the booking requests don't write them. The stats are read by primary key.
+ * <p>
+ * The pending events are flushed on shutdown, but those of a node which crashes (at most
+ * {@code app.stats.flush-ms} worth of them) are missing until the next backfill rebuilds the rollups.
+ */
+@Slf4j
+@Service
+public class UsageStatsService {
+    private record Delta(long bookings, long returned, long seconds) {
+        private Delta plus(Delta other) {
+            return new Delta(bookings + other.bookings, returned + other.returned, seconds + other.seconds);
+        }
+    }
+
+    @Autowired
+    private DailyUsageRepository dailyUsageRepository;
+
+    @Autowired
+    private UsageTotalsRepository usageTotalsRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${app.stats.daily-days:30}")
+    private int dailyDays;
+
+    // Without the scheduled flush, the events are only applied by flushNow()
+    @Value("${app.stats.flush.enabled:true}")
+    private boolean flushEnabled;
+
+    private Map<DailyUsageId, Delta> pending = new ConcurrentHashMap<>();
+
+    // Events share the read lock, the flush takes the write lock only to swap the pending deltas
+    private final ReadWriteLock pendingLock = new ReentrantReadWriteLock();
+
+    // Held by the flush and by the backfill, which rebuilds the rollups from the history
+    private final ReentrantLock rollupLock = new ReentrantLock();
+
+    // Set while a rebuild runs, the events before it are counted from the history
+    private volatile LocalDateTime rebuildCutoff;
+
+    public UsageStatsService(DailyUsageRepository dailyUsageRepository, UsageTotalsRepository usageTotalsRepository,
+                             DeviceRepository deviceRepository, UserRepository userRepository,
+                             TransactionTemplate transactionTemplate) {
+        this.dailyUsageRepository = dailyUsageRepository;
+        this.usageTotalsRepository = usageTotalsRepository;
+        this.deviceRepository = deviceRepository;
+        this.userRepository = userRepository;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    @Transactional(readOnly = true)
+    public UsageStats getDeviceStats(Long deviceId) throws EntityNotFoundException {
+        if (deviceRepository.findById(deviceId).isEmpty()) {
+            throw new EntityNotFoundException("Device not found");
+        }
+
+        return getStats(SubjectType.DEVICE, deviceId);
+    }
+
+    @Transactional(readOnly = true)
+    public UsageStats getUserStats(Long userId) throws EntityNotFoundException {
+        if (userRepository.findById(userId).isEmpty()) {
+            throw new EntityNotFoundException("User not found");
+        }
+
+        return getStats(SubjectType.USER, userId);
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+    public void onDeviceEvent(DeviceEvent event) {
+        LocalDate bookedOn = event.bookedAt().toLocalDate();
+        Delta delta = event.status() == DeviceStatus.BOOKED
+                ? new Delta(1, 0, 0)
+                : new Delta(0, 1, Duration.between(event.bookedAt(), event.at()).toSeconds());
+
+        pendingLock.readLock().lock();
+        try {
+            LocalDateTime cutoff = rebuildCutoff;
+            if (!Objects.isNull(cutoff) && event.at().isBefore(cutoff)) {
+                return;
+            }
+
+            pending.merge(new DailyUsageId(SubjectType.DEVICE, event.deviceId(), bookedOn), delta, Delta::plus);
+            pending.merge(new DailyUsageId(SubjectType.USER, event.userId(), bookedOn), delta, Delta::plus);
+        } finally {
+            pendingLock.readLock().unlock();
+        }
+    }
+
+    // Skipped while a backfill or another flush runs, the events are applied on the next one
+    @Scheduled(fixedDelayString = "${app.stats.flush-ms:5000}")
+    public void flush() {
+        if (!flushEnabled || !rollupLock.tryLock()) {
+            return;
+        }
+
+        try {
+            applyPending();
+        } finally {
+            rollupLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the pending events once the flush or backfill in progress, if any, is done.
+     */
+    @PreDestroy
+    public void flushNow() {
+        rollupLock.lock();
+        try {
+            applyPending();
+        } finally {
+            rollupLock.unlock();
+        }
+    }
+
+    /**
+     * Runs the task without concurrent flushes. The task rebuilds the rollups from the bookings made
+     * and returned before the given cutoff: the events before it are dropped, the later ones are kept
+     * and applied once it's done. An event whose transaction commits after its day was read from the
+     * history is still missed.
+     */
+    public void rebuild(Consumer<LocalDateTime> task) {
+        rollupLock.lock();
+        try {
+            // Taken with the pending events, which were all made before it
+            pendingLock.writeLock().lock();
+            LocalDateTime cutoff;
+            try {
+                cutoff = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+                rebuildCutoff = cutoff;
+                pending = new ConcurrentHashMap<>();
+            } finally {
+                pendingLock.writeLock().unlock();
+            }
+
+            task.accept(cutoff);
+        } finally {
+            rebuildCutoff = null;
+            rollupLock.unlock();
+        }
+    }
+
+    private void applyPending() {
+        Map<DailyUsageId, Delta> deltas = swapPending();
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        try {
+            transactionTemplate.executeWithoutResult(status -> apply(deltas));
+        } catch (DataAccessException e) {
+            // e.g. another node inserted the same rollup first, the deltas are applied on the next flush
+            log.warn("Failed to apply {} usage deltas, retrying on the next flush", deltas.size(), e);
+            pendingLock.readLock().lock();
+            try {
+                deltas.forEach((id, delta) -> pending.merge(id, delta, Delta::plus));
+            } finally {
+                pendingLock.readLock().unlock();
+            }
+        }
+    }
+
+    private Map<DailyUsageId, Delta> swapPending() {
+        pendingLock.writeLock().lock();
+        try {
+            Map<DailyUsageId, Delta> deltas = pending;
+            pending = new ConcurrentHashMap<>();
+
+            return deltas;
+        } finally {
+            pendingLock.writeLock().unlock();
+        }
+    }
+
+    private void apply(Map<DailyUsageId, Delta> deltas) {
+        // Oldest days first, so the streaks are extended in order
+        List<Map.Entry<DailyUsageId, Delta>> entries = deltas.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey(Comparator.comparing(DailyUsageId::getUsageDate)))
+                .toList();
+
+        for (Map.Entry<DailyUsageId, Delta> entry : entries) {
+            DailyUsageId id = entry.getKey();
+            Delta delta = entry.getValue();
+
+            if (dailyUsageRepository.increment(id, delta.bookings(), delta.returned(), delta.seconds()) == 0) {
+                dailyUsageRepository.save(DailyUsage.builder()
+                        .id(id)
+                        .bookingCount(delta.bookings())
+                        .returnedCount(delta.returned())
+                        .bookedSeconds(delta.seconds())
+                        .build());
+            }
+
+            UsageSubject subject = new UsageSubject(id.getSubjectType(), id.getSubjectId());
+            LocalDate day = id.getUsageDate();
+            if (usageTotalsRepository.increment(subject, delta.bookings(), delta.returned(), delta.seconds(), day, day.minusDays(1)) == 0) {
+                usageTotalsRepository.save(UsageTotals.builder()
+                        .id(subject)
+                        .bookingCount(delta.bookings())
+                        .returnedCount(delta.returned())
+                        .bookedSeconds(delta.seconds())
+                        .lastBookedOn(delta.bookings() > 0 ? day : null)
+                        .streakDays(delta.bookings() > 0 ? 1 : 0)
+                        .build());
+            }
+        }
+    }
+
+    private UsageStats getStats(SubjectType subjectType, Long subjectId) {
+        LocalDate today = LocalDate.now();
+        Optional<UsageTotals> totals = usageTotalsRepository.findById(new UsageSubject(subjectType, subjectId));
+        List<DailyUsageStats> daily = dailyUsageRepository.findSince(subjectType, subjectId, today.minusDays(dailyDays - 1L)).stream()
+                .map(usage -> new DailyUsageStats(usage.getId().getUsageDate(), usage.getBookingCount(), toHours(usage.getBookedSeconds())))
+                .toList();
+
+        if (totals.isEmpty()) {
+            return new UsageStats(subjectId, 0, 0, null, 0, null, daily);
+        }
+
+        UsageTotals usage = totals.get();
+        Double meanHoldMinutes = usage.getReturnedCount() == 0
+                ? null
+                : usage.getBookedSeconds() / 60.0 / usage.getReturnedCount();
+
+        // The streak is broken once a whole day went by without bookings
+        LocalDate lastBookedOn = usage.getLastBookedOn();
+        int currentStreakDays = !Objects.isNull(lastBookedOn) && !lastBookedOn.isBefore(today.minusDays(1))
+                ? usage.getStreakDays()
+                : 0;
+
+        return new UsageStats(subjectId, usage.getBookingCount(), toHours(usage.getBookedSeconds()), meanHoldMinutes,
+                currentStreakDays, lastBookedOn, daily);
+    }
+
+    private static double toHours(long seconds) {
+        return seconds / 3600.0;
+    }
+}
@@ -0,0 +1,157 @@
+package com.matheusfig90.service;
+
+import com.matheusfig90.entity.Booking;
+import com.matheusfig90.entity.Device;
+import com.matheusfig90.entity.DeviceWaiter;
+import com.matheusfig90.entity.DeviceWaiter.Status;
+import com.matheusfig90.exceptions.EntityNotFoundException;
+import com.matheusfig90.exceptions.UnavailableDeviceException;
+import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.repository.DeviceWaiterRepository;
+import com.matheusfig90.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opt-in wait queue per device. Waiters are persisted, and returned devices are handed to the
+ * head of their queue by {@link DeviceService#handOffToNextWaiter(Device)}.
+ */
+@Service
+public class WaitQueueService {
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private DeviceWaiterRepository deviceWaiterRepository;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    // Long polls of this node, completed when their waiter is granted
+    private final Map<Long, Set<DeferredResult<DeviceWaiter>>> pendingPolls = new ConcurrentHashMap<>();
+
+    public WaitQueueService(DeviceRepository deviceRepository, UserRepository userRepository,
+                            DeviceWaiterRepository deviceWaiterRepository, DeviceService deviceService,
+                            ApplicationEventPublisher eventPublisher) {
+        this.deviceRepository = deviceRepository;
+        this.userRepository = userRepository;
+        this.deviceWaiterRepository = deviceWaiterRepository;
+        this.deviceService = deviceService;
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * Adds the user to the wait queue of the device, or books it right away if it's available.
+     */
+    @Transactional(rollbackFor = {EntityNotFoundException.class, UnavailableDeviceException.class})
+    public DeviceWaiter enqueue(Long deviceId, Long userId) throws EntityNotFoundException, UnavailableDeviceException {
+        Device device = deviceRepository.findLockedById(deviceId)
+                .orElseThrow(() -> new EntityNotFoundException("Device not found"));
+        if (!userRepository.existsById(userId)) {
+            throw new EntityNotFoundException("User not found");
+        }
+
+        // Behind the waiters a reservation skipped, rather than ahead of them
+        if (device.isAvailable() && !deviceService.hasWaitersAhead(device, userId, LocalDateTime.now())) {
+            Booking booking = deviceService.bookDevice(deviceId, userId);
+            DeviceWaiter waiter = deviceWaiterRepository.save(DeviceWaiter.builder()
+                    .deviceId(deviceId)
+                    .userId(userId)
+                    .status(Status.GRANTED)
+                    .enqueuedAt(booking.getBookedAt())
+                    .grantedAt(booking.getBookedAt())
+                    .bookingId(booking.getId())
+                    .build());
+            eventPublisher.publishEvent(waiter);
+
+            return waiter;
+        }
+
+        if (!device.isAvailable() && Objects.equals(device.getLatestUser().getId(), userId)) {
+            throw new UnavailableDeviceException("Device is already booked by this user");
+        }
+
+        Optional<DeviceWaiter> waiting = deviceWaiterRepository.findFirstByDeviceIdAndUserIdAndStatus(deviceId, userId, Status.WAITING);
+        if (waiting.isPresent()) {
+            return waiting.get();
+        }
+
+        return deviceWaiterRepository.save(DeviceWaiter.builder()
+                .deviceId(deviceId)
+                .userId(userId)
+                .status(Status.WAITING)
+                .enqueuedAt(LocalDateTime.now())
+                .build());
+    }
+
+    @Transactional(rollbackFor = {EntityNotFoundException.class, UnavailableDeviceException.class})
+    public void cancel(Long waiterId) throws EntityNotFoundException, UnavailableDeviceException {
+        DeviceWaiter waiter = deviceWaiterRepository.findById(waiterId)
+                .orElseThrow(() -> new EntityNotFoundException("Waiter not found"));
+
+        // Waits for a return in progress, which may be granting the device to this waiter
+        deviceRepository.findLockedById(waiter.getDeviceId());
+
+        if (deviceWaiterRepository.deleteWaitingById(waiterId) == 0) {
+            throw new UnavailableDeviceException("The device was already granted, return it instead");
+        }
+    }
+
+    /**
+     * Completes once the waiter is granted, or with its current state after the timeout.
+     */
+    public DeferredResult<DeviceWaiter> awaitGrant(Long waiterId, long timeoutMillis) throws EntityNotFoundException {
+        DeferredResult<DeviceWaiter> result = new DeferredResult<>(timeoutMillis);
+
+        // Registered before reading the waiter, so a grant committed in between isn't missed
+        pendingPolls.computeIfAbsent(waiterId, id -> ConcurrentHashMap.newKeySet()).add(result);
+        result.onCompletion(() -> removePoll(waiterId, result));
+
+        Optional<DeviceWaiter> waiter = deviceWaiterRepository.findById(waiterId);
+        if (waiter.isEmpty()) {
+            removePoll(waiterId, result);
+            throw new EntityNotFoundException("Waiter not found");
+        }
+
+        if (waiter.get().getStatus() == Status.GRANTED) {
+            result.setResult(waiter.get());
+        } else {
+            result.onTimeout(() -> result.setResult(deviceWaiterRepository.findById(waiterId).orElse(waiter.get())));
+        }
+
+        return result;
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+    public void onGranted(DeviceWaiter waiter) {
+        Set<DeferredResult<DeviceWaiter>> polls = pendingPolls.remove(waiter.getId());
+        if (!Objects.isNull(polls)) {
+            polls.forEach(poll -> poll.setResult(waiter));
+        }
+    }
+
+    private void removePoll(Long waiterId, DeferredResult<DeviceWaiter> result) {
+        pendingPolls.computeIfPresent(waiterId, (id, polls) -> {
+            polls.remove(result);
+            return polls.isEmpty() ? null : polls;
+        });
+    }
+}
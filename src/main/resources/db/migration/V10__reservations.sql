@@ -0,0 +1,22 @@
+-- Reservations of devices for future time slots. Slots are half-open, so back-to-back reservations
+-- are allowed, and the exclusion constraint rejects overlapping reservations of a device.
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+
+CREATE SEQUENCE IF NOT EXISTS "reservations_seq" START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS "reservations" (
+    id bigint PRIMARY KEY,
+    device_id bigint NOT NULL REFERENCES "devices" (id),
+    user_id bigint NOT NULL REFERENCES "users" (id),
+    starts_at timestamp(6) NOT NULL,
+    ends_at timestamp(6) NOT NULL,
+    created_at timestamp(6),
+    CONSTRAINT ck_reservations_slot CHECK (starts_at < ends_at),
+    CONSTRAINT ex_reservations_overlap EXCLUDE USING gist (device_id WITH =, tsrange(starts_at, ends_at) WITH &&)
+);
+
+CREATE INDEX IF NOT EXISTS idx_reservations_device_starts_at ON "reservations" (device_id, starts_at);
+CREATE INDEX IF NOT EXISTS idx_reservations_ends_at ON "reservations" (ends_at);
+
+-- End of the latest reservation of each device
+ALTER TABLE "devices" ADD COLUMN IF NOT EXISTS reserved_until timestamp(6);
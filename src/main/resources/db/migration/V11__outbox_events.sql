@@ -0,0 +1,13 @@
+-- Book and return events waiting to be relayed, written in the same transaction as the change
+CREATE SEQUENCE IF NOT EXISTS "outbox_events_seq" START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS "outbox_events" (
+    id bigint PRIMARY KEY,
+    device_id bigint NOT NULL,
+    device_version bigint NOT NULL,
+    type varchar(20) NOT NULL,
+    payload varchar(1000) NOT NULL,
+    created_at timestamp(6) NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_outbox_events_device ON "outbox_events" (device_id, device_version, id);
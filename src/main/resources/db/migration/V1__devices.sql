@@ -1,3 +1,10 @@
+CREATE SEQUENCE IF NOT EXISTS "devices_seq" START WITH 101 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS "devices" (
+    id bigint PRIMARY KEY,
+    name varchar(60)
+);
+
 INSERT INTO "devices" (id, name) VALUES
     (1, 'Samsung Galaxy S9'),
     (2, 'Samsung Galaxy S8'),
@@ -8,4 +15,5 @@ INSERT INTO "devices" (id, name) VALUES
     (7, 'Apple iPhone 12'),
     (8, 'Apple iPhone 11'),
     (9, 'iPhone X'),
-    (10, 'Nokia 3310');
\ No newline at end of file
+    (10, 'Nokia 3310')
+ON CONFLICT (id) DO NOTHING;
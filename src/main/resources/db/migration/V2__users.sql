@@ -1,3 +1,11 @@
+CREATE SEQUENCE IF NOT EXISTS "users_seq" START WITH 101 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS "users" (
+    id bigint PRIMARY KEY,
+    name varchar(255)
+);
+
 INSERT INTO "users" (id, name) VALUES
     (1, 'Luis Suárez'),
-    (2, 'Juan Román Riquelme');
\ No newline at end of file
+    (2, 'Juan Román Riquelme')
+ON CONFLICT (id) DO NOTHING;
@@ -0,0 +1,98 @@
+-- Booking history, partitioned by month on booked_at. A default partition keeps the rows
+-- outside the created months, new months are created ahead by create_booking_partitions.
+CREATE SEQUENCE IF NOT EXISTS "bookings_seq" START WITH 1 INCREMENT BY 50;
+
+-- A bookings table created by Hibernate before the migrations were enabled is copied below
+ALTER TABLE IF EXISTS "bookings" RENAME TO "bookings_legacy";
+
+CREATE TABLE "bookings" (
+    id bigint NOT NULL,
+    device_id bigint NOT NULL REFERENCES "devices" (id),
+    user_id bigint NOT NULL REFERENCES "users" (id),
+    booked_at timestamp(6) NOT NULL,
+    returned_at timestamp(6),
+    open_device_id bigint,
+    CONSTRAINT pk_bookings PRIMARY KEY (id, booked_at),
+    CONSTRAINT ck_bookings_open_device CHECK (
+        (returned_at IS NULL AND open_device_id = device_id) OR (returned_at IS NOT NULL AND open_device_id IS NULL)
+    )
+) PARTITION BY RANGE (booked_at);
+
+CREATE TABLE "bookings_default" PARTITION OF "bookings" DEFAULT;
+
+CREATE OR REPLACE FUNCTION create_booking_partitions(from_date date, to_date date) RETURNS void AS $$
+DECLARE
+    month_start date := date_trunc('month', from_date)::date;
+BEGIN
+    WHILE month_start < to_date LOOP
+        EXECUTE format(
+            'CREATE TABLE IF NOT EXISTS %I PARTITION OF "bookings" FOR VALUES FROM (%L) TO (%L)',
+            'bookings_' || to_char(month_start, 'YYYY_MM'),
+            month_start,
+            (month_start + interval '1 month')::date
+        );
+        month_start := (month_start + interval '1 month')::date;
+    END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Latest booking of a device (findTopByDeviceIdOrderByBookedAtDesc), answered from the index alone.
+-- id is part of the key, as the keyset pagination of the bookings of a device orders by (booked_at, id)
+CREATE INDEX idx_bookings_device_booked_at ON "bookings" (device_id, booked_at DESC, id DESC)
+    INCLUDE (user_id, returned_at, open_device_id);
+
+-- Open bookings, a small fraction of the history
+CREATE INDEX idx_bookings_open ON "bookings" (device_id) WHERE returned_at IS NULL;
+CREATE INDEX idx_bookings_open_device ON "bookings" (open_device_id) WHERE open_device_id IS NOT NULL;
+
+-- Unique constraints on a partitioned table must include the partition key, so the single open
+-- booking per device is enforced by this table instead, kept in sync with the bookings by a trigger.
+-- A second open booking for a device fails with a unique violation, like the constraint would.
+CREATE TABLE "open_bookings" (
+    device_id bigint PRIMARY KEY,
+    booking_id bigint NOT NULL
+);
+
+CREATE OR REPLACE FUNCTION sync_open_bookings() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        IF NEW.returned_at IS NULL THEN
+            INSERT INTO "open_bookings" (device_id, booking_id) VALUES (NEW.device_id, NEW.id);
+        END IF;
+    ELSIF OLD.returned_at IS NULL AND NEW.returned_at IS NOT NULL THEN
+        DELETE FROM "open_bookings" WHERE device_id = OLD.device_id AND booking_id = OLD.id;
+    END IF;
+
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_bookings_open_bookings
+    AFTER INSERT OR UPDATE OF returned_at ON "bookings"
+    FOR EACH ROW EXECUTE FUNCTION sync_open_bookings();
+
+DO $$
+BEGIN
+    IF to_regclass('bookings_legacy') IS NULL THEN
+        PERFORM create_booking_partitions(CURRENT_DATE, (CURRENT_DATE + interval '3 months')::date);
+        RETURN;
+    END IF;
+
+    PERFORM create_booking_partitions(
+        COALESCE((SELECT MIN(booked_at) FROM "bookings_legacy"), CURRENT_DATE)::date,
+        (CURRENT_DATE + interval '3 months')::date
+    );
+
+    -- Only the latest open booking of a device stays open, older ones were left open by concurrent bookings
+    INSERT INTO "bookings" (id, device_id, user_id, booked_at, returned_at, open_device_id)
+    SELECT id, device_id, user_id, booked_at,
+           CASE WHEN returned_at IS NULL AND open_rank > 1 THEN now() ELSE returned_at END,
+           CASE WHEN returned_at IS NULL AND open_rank = 1 THEN device_id END
+    FROM (
+        SELECT legacy.*,
+               ROW_NUMBER() OVER (PARTITION BY device_id, returned_at IS NULL ORDER BY booked_at DESC, id DESC) AS open_rank
+        FROM "bookings_legacy" legacy
+    ) ranked;
+
+    DROP TABLE "bookings_legacy";
+END $$;
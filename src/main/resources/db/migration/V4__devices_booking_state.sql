@@ -0,0 +1,20 @@
+-- State of the latest booking of each device, kept on the devices row so the availability
+-- is read by primary key. Updated with the bookings and checked by DeviceStateReconciliationJob.
+ALTER TABLE "devices"
+    ADD COLUMN IF NOT EXISTS latest_booking_id bigint,
+    ADD COLUMN IF NOT EXISTS latest_user_id bigint REFERENCES "users" (id),
+    ADD COLUMN IF NOT EXISTS latest_booked_at timestamp(6),
+    ADD COLUMN IF NOT EXISTS latest_returned_at timestamp(6),
+    ADD COLUMN IF NOT EXISTS version bigint NOT NULL DEFAULT 0;
+
+UPDATE "devices" d
+SET latest_booking_id = l.id,
+    latest_user_id = l.user_id,
+    latest_booked_at = l.booked_at,
+    latest_returned_at = l.returned_at
+FROM (
+    SELECT DISTINCT ON (device_id) id, device_id, user_id, booked_at, returned_at
+    FROM "bookings"
+    ORDER BY device_id, booked_at DESC, id DESC
+) l
+WHERE l.device_id = d.id;
@@ -0,0 +1,18 @@
+-- Wait queues of the booked devices, the head of each queue is the lowest id still waiting
+CREATE SEQUENCE IF NOT EXISTS "device_waiters_seq" START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS "device_waiters" (
+    id bigint PRIMARY KEY,
+    device_id bigint NOT NULL REFERENCES "devices" (id),
+    user_id bigint NOT NULL REFERENCES "users" (id),
+    status varchar(10) NOT NULL,
+    enqueued_at timestamp(6),
+    granted_at timestamp(6),
+    booking_id bigint
+);
+
+CREATE INDEX IF NOT EXISTS idx_device_waiters_queue ON "device_waiters" (device_id, status, id);
+
+-- A user waits at most once per device
+CREATE UNIQUE INDEX IF NOT EXISTS uk_device_waiters_waiting ON "device_waiters" (device_id, user_id)
+    WHERE status = 'WAITING';
@@ -0,0 +1,22 @@
+-- Usage rollups of the devices and users, maintained from the book and return events
+-- (UsageStatsService) and rebuilt from the history by UsageBackfillJob
+CREATE TABLE IF NOT EXISTS "usage_daily" (
+    subject_type varchar(6) NOT NULL,
+    subject_id bigint NOT NULL,
+    usage_date date NOT NULL,
+    booking_count bigint NOT NULL,
+    returned_count bigint NOT NULL,
+    booked_seconds bigint NOT NULL,
+    CONSTRAINT pk_usage_daily PRIMARY KEY (subject_type, subject_id, usage_date)
+);
+
+CREATE TABLE IF NOT EXISTS "usage_totals" (
+    subject_type varchar(6) NOT NULL,
+    subject_id bigint NOT NULL,
+    booking_count bigint NOT NULL,
+    returned_count bigint NOT NULL,
+    booked_seconds bigint NOT NULL,
+    last_booked_on date,
+    streak_days integer NOT NULL,
+    CONSTRAINT pk_usage_totals PRIMARY KEY (subject_type, subject_id)
+);
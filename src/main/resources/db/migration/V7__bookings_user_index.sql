@@ -0,0 +1,2 @@
+-- Keyset pagination of the bookings of a user, newest first (the device one is idx_bookings_device_booked_at)
+CREATE INDEX IF NOT EXISTS idx_bookings_user_booked_at ON "bookings" (user_id, booked_at DESC, id DESC);
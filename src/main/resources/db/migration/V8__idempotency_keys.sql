@@ -0,0 +1,12 @@
+-- Responses of the requests sent with an Idempotency-Key, when app.idempotency.store=jdbc.
+-- status is null while the first request is in progress.
+CREATE TABLE IF NOT EXISTS "idempotency_keys" (
+    idempotency_key varchar(255) NOT NULL PRIMARY KEY,
+    request varchar(2048) NOT NULL,
+    status integer,
+    content_type varchar(255),
+    body bytea,
+    created_at timestamp(6) NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_idempotency_keys_created_at ON "idempotency_keys" (created_at);
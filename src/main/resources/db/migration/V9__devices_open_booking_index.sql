@@ -0,0 +1,3 @@
+-- Open bookings in due order, the queue read by the booking expiry job
+CREATE INDEX IF NOT EXISTS idx_devices_open_booked_at ON "devices" (latest_booked_at)
+    WHERE latest_booking_id IS NOT NULL AND latest_returned_at IS NULL;
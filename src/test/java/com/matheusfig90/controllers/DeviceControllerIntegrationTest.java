@@ -1,33 +1,72 @@
 package com.matheusfig90.controllers;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.matheusfig90.controllers.requests.BatchBookDevicesRequestBody;
+import com.matheusfig90.controllers.requests.BatchReturnDevicesRequestBody;
 import com.matheusfig90.controllers.requests.BookDeviceRequestBody;
+import com.matheusfig90.controllers.requests.ReserveDeviceRequestBody;
 import com.matheusfig90.entity.Booking;
 import com.matheusfig90.entity.Device;
+import com.matheusfig90.entity.DeviceWaiter;
+import com.matheusfig90.entity.Reservation;
 import com.matheusfig90.entity.User;
+import com.matheusfig90.jobs.BookingExpiryJob;
+import com.matheusfig90.jobs.DeviceStateReconciliationJob;
 import com.matheusfig90.repository.BookingRepository;
+import com.matheusfig90.outbox.OutboxRelay;
 import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.repository.DeviceWaiterRepository;
+import com.matheusfig90.repository.OutboxEventRepository;
+import com.matheusfig90.repository.ReservationRepository;
 import com.matheusfig90.repository.UserRepository;
+import com.matheusfig90.service.BatchBookingService.BatchMode;
+import com.matheusfig90.service.UsageStatsService;
+import com.matheusfig90.service.WaitQueueService;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestReporter;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
 
 @ExtendWith(SpringExtension.class)
 @SpringBootTest
@@ -36,6 +75,7 @@ import static org.hamcrest.Matchers.*;
 public class DeviceControllerIntegrationTest {
 
     private static Long USER_ID = 1L;
+
     private static String USER_NAME = "User #1";
 
     @Autowired
@@ -50,6 +90,36 @@ public class DeviceControllerIntegrationTest {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private DeviceStateReconciliationJob reconciliationJob;
+
+    @Autowired
+    private BookingExpiryJob bookingExpiryJob;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private OutboxRelay outboxRelay;
+
+    @Autowired
+    private UsageStatsService usageStatsService;
+
+    @Autowired
+    private WaitQueueService waitQueueService;
+
+    @Autowired
+    private DeviceWaiterRepository deviceWaiterRepository;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
     @BeforeAll
     public void setUp() {
         User user1 = User.builder()
@@ -59,6 +129,12 @@ public class DeviceControllerIntegrationTest {
 
         userRepository.save(user1);
 
+        // User #2 waits for a device booked by user #1
+        userRepository.save(User.builder()
+                .id(2L)
+                .name("User #2")
+                .build());
+
         // Device #1 and #4 are available
         // Device #2 and #3 are booked, but #3 will be return
         Device device1 = Device.builder()
@@ -81,7 +157,34 @@ public class DeviceControllerIntegrationTest {
                 .name("Device #4")
                 .build();
 
-        deviceRepository.saveAll(Arrays.asList(device1, device2, device3, device4));
+        // Device #5 is available and it's booked concurrently during tests
+        Device device5 = Device.builder()
+                .id(5L)
+                .name("Device #5")
+                .build();
+
+        deviceRepository.saveAll(Arrays.asList(device1, device2, device3, device4, device5));
+
+        // Devices #6 to #9 are available and they are booked in batches during tests,
+        // Device #10 is available and it's booked to check the fetch plan,
+        // Device #11 is available and it's booked and returned to check the events stream,
+        // Device #12 is available and it's handed over to a waiter during tests,
+        // Device #13 is available and it's booked and returned to check the usage stats
+        // Device #14 is available and it's booked and returned with idempotency keys
+        // Device #15 is available and it's booked, then returned by the expiry job
+        // Device #16 is available and it's reserved during tests
+        // Device #17 is available and it's booked and returned to check the outbox
+        // Device #18 is available and unused, the read replica routing is checked by ReadReplicasIntegrationTest
+        // Devices #19 and #20 are available and they are returned concurrently in batches
+        // Device #21 is available and it's returned by its user while the expiry job runs
+        // Device #22 is available and it's booked while the usage rollups are rebuilt
+        // Device #23 is available and its waiter is skipped by a reservation
+        for (long id = 6L; id <= 23L; id++) {
+            deviceRepository.save(Device.builder()
+                    .id(id)
+                    .name("Device #" + id)
+                    .build());
+        }
 
         // Device #2 is booked
         Booking booking1 = Booking.builder()
@@ -106,6 +209,9 @@ public class DeviceControllerIntegrationTest {
                 .build();
 
         bookingRepository.saveAll(Arrays.asList(booking1, booking2, booking3));
+
+        // The bookings above were saved without the service, so the devices state is repaired
+        assertEquals(3, reconciliationJob.reconcile());
     }
 
     @Nested
@@ -119,8 +225,8 @@ public class DeviceControllerIntegrationTest {
             mvc.perform(request)
                     .andExpect(status().isOk())
                     .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
-                    .andExpect(jsonPath("$.device.name", is("Device #4")))
-                    .andExpect(jsonPath("$.latestBooking.user.name", is(USER_NAME)))
+                    .andExpect(jsonPath("$.name", is("Device #4")))
+                    .andExpect(jsonPath("$.latestBooking.userName", is(USER_NAME)))
                     .andExpect(jsonPath("$.isAvailable", is(true)));
         }
 
@@ -133,11 +239,74 @@ public class DeviceControllerIntegrationTest {
             mvc.perform(request)
                     .andExpect(status().isOk())
                     .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
-                    .andExpect(jsonPath("$.device.name", is("Device #2")))
-                    .andExpect(jsonPath("$.latestBooking.user.name", is(USER_NAME)))
+                    .andExpect(jsonPath("$.name", is("Device #2")))
+                    .andExpect(jsonPath("$.latestBooking.userName", is(USER_NAME)))
                     .andExpect(jsonPath("$.isAvailable", is(false)));
         }
 
+        @Test
+        public void getInfoAsCbor() throws Exception {
+            byte[] body = mvc.perform(MockMvcRequestBuilders.get("/devices/2").accept(MediaType.APPLICATION_CBOR))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_CBOR))
+                    .andReturn().getResponse().getContentAsByteArray();
+
+            JsonNode deviceDetails = new ObjectMapper(new CBORFactory()).readTree(body);
+            assertEquals("Device #2", deviceDetails.get("name").asText());
+            assertFalse(deviceDetails.get("isAvailable").asBoolean());
+            assertEquals(USER_NAME, deviceDetails.get("latestBooking").get("userName").asText());
+        }
+
+        @Test
+        public void getInfoNotModifiedWithETag() throws Exception {
+            String eTag = mvc.perform(MockMvcRequestBuilders.get("/devices/4"))
+                    .andExpect(status().isOk())
+                    .andExpect(header().exists(HttpHeaders.ETAG))
+                    .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache"))
+                    .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/4").header(HttpHeaders.IF_NONE_MATCH, eTag))
+                    .andExpect(status().isNotModified())
+                    .andExpect(header().string(HttpHeaders.ETAG, eTag))
+                    .andExpect(content().string(""));
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/4").header(HttpHeaders.IF_NONE_MATCH, "\"4-999\""))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.name", is("Device #4")));
+        }
+
+        @Test
+        public void getInfoWithETagOfEachRepresentation() throws Exception {
+            MockHttpServletResponse json = mvc.perform(MockMvcRequestBuilders.get("/devices/4").accept(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(header().string(HttpHeaders.VARY, containsString(HttpHeaders.ACCEPT)))
+                    .andReturn().getResponse();
+            MockHttpServletResponse cbor = mvc.perform(MockMvcRequestBuilders.get("/devices/4").accept(MediaType.APPLICATION_CBOR))
+                    .andExpect(status().isOk())
+                    .andExpect(header().string(HttpHeaders.VARY, containsString(HttpHeaders.ACCEPT)))
+                    .andReturn().getResponse();
+
+            String jsonETag = json.getHeader(HttpHeaders.ETAG);
+            String cborETag = cbor.getHeader(HttpHeaders.ETAG);
+            assertNotEquals(jsonETag, cborETag);
+
+            // The CBOR encoding of the same details is smaller than the JSON one
+            assertTrue(cbor.getContentAsByteArray().length < json.getContentAsByteArray().length);
+
+            // A JSON client revalidating with the ETag of the CBOR body gets the JSON body, not a 304
+            mvc.perform(MockMvcRequestBuilders.get("/devices/4")
+                            .accept(MediaType.APPLICATION_JSON)
+                            .header(HttpHeaders.IF_NONE_MATCH, cborETag))
+                    .andExpect(status().isOk())
+                    .andExpect(header().string(HttpHeaders.ETAG, jsonETag));
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/4")
+                            .accept(MediaType.APPLICATION_CBOR)
+                            .header(HttpHeaders.IF_NONE_MATCH, cborETag))
+                    .andExpect(status().isNotModified())
+                    .andExpect(header().string(HttpHeaders.VARY, containsString(HttpHeaders.ACCEPT)));
+        }
+
         @Test
         public void failsOnGetInfoUsingWrongId() throws Exception {
             MockHttpServletRequestBuilder request = MockMvcRequestBuilders
@@ -149,6 +318,63 @@ public class DeviceControllerIntegrationTest {
         }
     }
 
+    @Nested
+    public class ListDevices {
+        @Test
+        public void listDevicesPageByPage() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/devices?limit=2"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.devices[*].id", contains(1, 2)))
+                    .andExpect(jsonPath("$.nextAfterId", is(2)));
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices?limit=2&afterId=2"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.devices[*].id", contains(3, 4)))
+                    .andExpect(jsonPath("$.nextAfterId", is(4)));
+        }
+
+        @Test
+        public void listDevicesByName() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/devices").param("name", "device #4"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.devices", hasSize(1)))
+                    .andExpect(jsonPath("$.devices[0].name", is("Device #4")))
+                    .andExpect(jsonPath("$.devices[0].isAvailable", is(true)))
+                    .andExpect(jsonPath("$.nextAfterId", nullValue()));
+        }
+
+        @Test
+        public void listDevicesByStatus() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/devices?status=BOOKED&limit=500"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.devices[*].id", hasItem(2)))
+                    .andExpect(jsonPath("$.devices[*].id", not(hasItem(4))))
+                    .andExpect(jsonPath("$.devices[?(@.id == 2)].bookedByUserName", contains(USER_NAME)));
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices?status=AVAILABLE&limit=500"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.devices[*].id", hasItem(4)))
+                    .andExpect(jsonPath("$.devices[*].id", not(hasItem(2))));
+        }
+
+        @Test
+        public void listDevicesBookedByUser() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/devices?bookedBy=" + USER_ID + "&limit=500"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.devices[*].id", hasItem(2)));
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices?bookedBy=999"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.devices", hasSize(0)));
+        }
+
+        @Test
+        public void failsOnListDevicesWithInvalidLimit() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/devices?limit=0"))
+                    .andExpect(status().isBadRequest());
+        }
+    }
+
     @Nested
     public class BookDevices {
         private BookDeviceRequestBody requestBody = new BookDeviceRequestBody(USER_ID);
@@ -175,7 +401,10 @@ public class DeviceControllerIntegrationTest {
                     .contentType(MediaType.APPLICATION_JSON);
 
             mvc.perform(request)
-                    .andExpect(status().isBadRequest());
+                    .andExpect(status().isBadRequest())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_PROBLEM_JSON))
+                    .andExpect(jsonPath("$.status", is(400)))
+                    .andExpect(jsonPath("$.detail", is("Device is already booked")));
         }
 
         @Test
@@ -238,4 +467,924 @@ public class DeviceControllerIntegrationTest {
                     .andExpect(status().isBadRequest());
         }
     }
+
+    @Nested
+    public class BatchBookings {
+        @Test
+        public void bookAndReturnInBatchSuccessfully() throws Exception {
+            BatchBookDevicesRequestBody bookRequestBody = new BatchBookDevicesRequestBody(Arrays.asList(6L, 7L), USER_ID, BatchMode.ALL_OR_NOTHING);
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/book")
+                            .content(new ObjectMapper().writeValueAsString(bookRequestBody))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookings", hasSize(2)))
+                    .andExpect(jsonPath("$.bookings[*].device.name", containsInAnyOrder("Device #6", "Device #7")))
+                    .andExpect(jsonPath("$.failures", anEmptyMap()));
+
+            BatchReturnDevicesRequestBody returnRequestBody = new BatchReturnDevicesRequestBody(Arrays.asList(6L, 7L), BatchMode.ALL_OR_NOTHING);
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/return")
+                            .content(new ObjectMapper().writeValueAsString(returnRequestBody))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookings", hasSize(2)))
+                    .andExpect(jsonPath("$.bookings[*].returnedAt", everyItem(notNullValue())));
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/6"))
+                    .andExpect(jsonPath("$.isAvailable", is(true)));
+        }
+
+        @Test
+        public void failOnBookInBatchWithAnUnavailableDeviceWithoutBookingAnyDevice() throws Exception {
+            BatchBookDevicesRequestBody requestBody = new BatchBookDevicesRequestBody(Arrays.asList(8L, 2L), USER_ID, BatchMode.ALL_OR_NOTHING);
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/book")
+                            .content(new ObjectMapper().writeValueAsString(requestBody))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isBadRequest());
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/8"))
+                    .andExpect(jsonPath("$.isAvailable", is(true)));
+        }
+
+        @Test
+        public void bookInBatchSkippingUnavailableDevicesOnBestEffort() throws Exception {
+            BatchBookDevicesRequestBody requestBody = new BatchBookDevicesRequestBody(Arrays.asList(9L, 2L, 999L), USER_ID, BatchMode.BEST_EFFORT);
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/book")
+                            .content(new ObjectMapper().writeValueAsString(requestBody))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookings", hasSize(1)))
+                    .andExpect(jsonPath("$.bookings[0].device.name", is("Device #9")))
+                    .andExpect(jsonPath("$.failures['2']", is("Device is already booked")))
+                    .andExpect(jsonPath("$.failures['999']", is("Device not found")));
+        }
+
+        @Test
+        public void returnInBatchConcurrentlyOnBestEffort() throws Exception {
+            BatchBookDevicesRequestBody bookRequestBody = new BatchBookDevicesRequestBody(Arrays.asList(19L, 20L), USER_ID, BatchMode.ALL_OR_NOTHING);
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/book")
+                            .content(new ObjectMapper().writeValueAsString(bookRequestBody))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+
+            String returnRequestBody = new ObjectMapper().writeValueAsString(
+                    new BatchReturnDevicesRequestBody(Arrays.asList(19L, 20L), BatchMode.BEST_EFFORT));
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<MvcResult>> responses = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    responses.add(executor.submit(() -> {
+                        start.await();
+                        return mvc.perform(MockMvcRequestBuilders
+                                        .put("/devices/return")
+                                        .content(returnRequestBody)
+                                        .contentType(MediaType.APPLICATION_JSON))
+                                .andReturn();
+                    }));
+                }
+                start.countDown();
+
+                // Every request succeeds, and each device is returned by exactly one of them
+                int returned = 0;
+                for (Future<MvcResult> response : responses) {
+                    MvcResult result = response.get();
+                    assertEquals(200, result.getResponse().getStatus());
+
+                    JsonNode body = new ObjectMapper().readTree(result.getResponse().getContentAsString());
+                    returned += body.get("bookings").size();
+                    assertEquals(2, body.get("bookings").size() + body.get("failures").size());
+                }
+
+                assertEquals(2, returned);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Nested
+    public class Events {
+        @Test
+        public void streamBookAndReturnEvents() throws Exception {
+            MvcResult events = mvc.perform(MockMvcRequestBuilders.get("/devices/events").param("deviceId", "11"))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/11/book")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+
+            mvc.perform(MockMvcRequestBuilders.put("/devices/11/return"))
+                    .andExpect(status().isOk());
+
+            // Events are sent asynchronously after each commit
+            long deadline = System.currentTimeMillis() + 5_000;
+            String content = events.getResponse().getContentAsString();
+            while (!content.contains("event:available") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+                content = events.getResponse().getContentAsString();
+            }
+
+            assertThat(content, stringContainsInOrder("event:booked", "\"deviceId\":11", "event:available", "\"deviceId\":11"));
+        }
+    }
+
+    @Nested
+    public class WaitQueue {
+        @Test
+        public void handReturnedDeviceToTheWaiter() throws Exception {
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/12/book")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+
+            String waiter = mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/12/wait")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(2L)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.status", is("WAITING")))
+                    .andReturn().getResponse().getContentAsString();
+            Long waiterId = new ObjectMapper().readTree(waiter).get("id").asLong();
+
+            MvcResult poll = mvc.perform(MockMvcRequestBuilders.get("/waiters/" + waiterId))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+
+            mvc.perform(MockMvcRequestBuilders.put("/devices/12/return"))
+                    .andExpect(status().isOk());
+
+            poll.getAsyncResult(5_000);
+            mvc.perform(MockMvcRequestBuilders.asyncDispatch(poll))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.status", is("GRANTED")))
+                    .andExpect(jsonPath("$.bookingId", notNullValue()));
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/12"))
+                    .andExpect(jsonPath("$.isAvailable", is(false)))
+                    .andExpect(jsonPath("$.latestBooking.userName", is("User #2")));
+        }
+
+        @Test
+        public void keepWaitersSkippedByAReservationAheadOfNewBookings() throws Exception {
+            userRepository.save(User.builder()
+                    .id(3L)
+                    .name("User #3")
+                    .build());
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/23/book")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+
+            DeviceWaiter waiter = waitQueueService.enqueue(23L, 2L);
+            assertEquals(DeviceWaiter.Status.WAITING, waiter.getStatus());
+
+            // User #1 reserved the device from now on, so its return skips the waiter
+            LocalDateTime now = LocalDateTime.now();
+            Reservation reservation = reservationRepository.save(Reservation.builder()
+                    .deviceId(23L)
+                    .userId(USER_ID)
+                    .startsAt(now.minus(1, ChronoUnit.MINUTES))
+                    .endsAt(now.plus(30, ChronoUnit.MINUTES))
+                    .createdAt(now)
+                    .build());
+            Device device = deviceRepository.findById(23L).orElseThrow();
+            device.setReservedUntil(reservation.getEndsAt());
+            deviceRepository.save(device);
+
+            mvc.perform(MockMvcRequestBuilders.put("/devices/23/return"))
+                    .andExpect(status().isOk());
+            assertEquals(0, bookingExpiryJob.dispatchWaiters());
+
+            // Once the reservation is cancelled, neither a booking nor a new waiter jumps the queue
+            reservationRepository.delete(reservation);
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/23/book")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(3L)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isBadRequest());
+            assertEquals(DeviceWaiter.Status.WAITING, waitQueueService.enqueue(23L, 3L).getStatus());
+
+            assertEquals(1, bookingExpiryJob.dispatchWaiters());
+            assertEquals(DeviceWaiter.Status.GRANTED, deviceWaiterRepository.findById(waiter.getId()).orElseThrow().getStatus());
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/23"))
+                    .andExpect(jsonPath("$.isAvailable", is(false)))
+                    .andExpect(jsonPath("$.latestBooking.userName", is("User #2")));
+        }
+
+        @Test
+        public void failsOnWaitingForADeviceBookedBySameUser() throws Exception {
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/2/wait")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isBadRequest());
+        }
+    }
+
+    @Nested
+    public class Export {
+        private final String from = LocalDate.now().minusDays(1).toString();
+        private final String to = LocalDate.now().plusDays(1).toString();
+
+        @Test
+        public void exportBookingsAsCsv() throws Exception {
+            MvcResult export = mvc.perform(MockMvcRequestBuilders.get("/bookings/export")
+                            .param("from", from)
+                            .param("to", to))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+
+            mvc.perform(MockMvcRequestBuilders.asyncDispatch(export))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith("text/csv"))
+                    .andExpect(content().string(startsWith("booking_id,device_id,device_name,user_id,user_name,booked_at,returned_at\n")))
+                    .andExpect(content().string(containsString(",2,Device #2,1,User #1,")));
+        }
+
+        @Test
+        public void exportBookingsAsGzippedNdjson() throws Exception {
+            MvcResult export = mvc.perform(MockMvcRequestBuilders.get("/bookings/export")
+                            .param("from", from)
+                            .param("to", to)
+                            .param("format", "NDJSON")
+                            .header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+
+            byte[] body = mvc.perform(MockMvcRequestBuilders.asyncDispatch(export))
+                    .andExpect(status().isOk())
+                    .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                    .andReturn().getResponse().getContentAsByteArray();
+
+            String ndjson;
+            try (GZIPInputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                ndjson = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+            }
+
+            List<String> lines = ndjson.lines().toList();
+            assertTrue(lines.size() >= 3);
+            assertEquals("Device #2", new ObjectMapper().readTree(lines.get(0)).get("deviceName").asText());
+        }
+
+        @Test
+        public void exportUncompressedWhenGzipIsRefused() throws Exception {
+            MvcResult export = mvc.perform(MockMvcRequestBuilders.get("/bookings/export")
+                            .param("from", from)
+                            .param("to", to)
+                            .header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, identity"))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+
+            mvc.perform(MockMvcRequestBuilders.asyncDispatch(export))
+                    .andExpect(status().isOk())
+                    .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                    .andExpect(content().string(startsWith("booking_id,")));
+        }
+
+        @Test
+        public void failsOnExportWithInvalidRange() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/bookings/export")
+                            .param("from", to)
+                            .param("to", from))
+                    .andExpect(status().isBadRequest());
+        }
+    }
+
+    @Nested
+    public class Idempotency {
+        @Test
+        public void replayBookAndReturnWithSameKey() throws Exception {
+            MockHttpServletRequestBuilder book = MockMvcRequestBuilders
+                    .put("/devices/14/book")
+                    .header("Idempotency-Key", "book-14")
+                    .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                    .contentType(MediaType.APPLICATION_JSON);
+
+            String booking = mvc.perform(book)
+                    .andExpect(status().isOk())
+                    .andExpect(header().doesNotExist("Idempotent-Replayed"))
+                    .andReturn().getResponse().getContentAsString();
+
+            mvc.perform(book)
+                    .andExpect(status().isOk())
+                    .andExpect(header().string("Idempotent-Replayed", "true"))
+                    .andExpect(content().json(booking));
+
+            // The key of the booking can't be reused to book the device for another user
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/14/book")
+                            .header("Idempotency-Key", "book-14")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(2L)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isUnprocessableEntity());
+
+            // Keys are scoped to the client, so the same key from another one is executed, and fails as the device is booked
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/14/book")
+                            .with(request -> {
+                                request.setRemoteAddr("10.0.1.1");
+                                return request;
+                            })
+                            .header("Idempotency-Key", "book-14")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(2L)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isBadRequest());
+
+            // The key of the booking can't be reused to return the device
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/14/return")
+                            .header("Idempotency-Key", "book-14"))
+                    .andExpect(status().isUnprocessableEntity());
+
+            MockHttpServletRequestBuilder returnDevice = MockMvcRequestBuilders
+                    .put("/devices/14/return")
+                    .header("Idempotency-Key", "return-14");
+
+            String returnedBooking = mvc.perform(returnDevice)
+                    .andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString();
+
+            mvc.perform(returnDevice)
+                    .andExpect(status().isOk())
+                    .andExpect(header().string("Idempotent-Replayed", "true"))
+                    .andExpect(content().json(returnedBooking));
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/14/bookings"))
+                    .andExpect(jsonPath("$.bookings", hasSize(1)));
+        }
+
+        @Test
+        public void retryFailedRequestWithSameKey() throws Exception {
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/999/return")
+                            .header("Idempotency-Key", "reused"))
+                    .andExpect(status().isBadRequest());
+
+            // Failed requests aren't stored, so the key is still free
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/999/book")
+                            .header("Idempotency-Key", "reused")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isNotFound());
+        }
+    }
+
+    @Nested
+    public class BookingHistory {
+        @Test
+        public void getDeviceBookings() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/devices/4/bookings"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookings", hasSize(1)))
+                    .andExpect(jsonPath("$.bookings[0].deviceName", is("Device #4")))
+                    .andExpect(jsonPath("$.bookings[0].userName", is(USER_NAME)))
+                    .andExpect(jsonPath("$.bookings[0].returnedAt", notNullValue()))
+                    .andExpect(jsonPath("$.nextCursor", nullValue()));
+        }
+
+        @Test
+        public void getUserBookingsPageByPage() throws Exception {
+            String firstPage = mvc.perform(MockMvcRequestBuilders.get("/users/" + USER_ID + "/bookings")
+                            .param("limit", "2"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookings", hasSize(2)))
+                    .andExpect(jsonPath("$.nextCursor", notNullValue()))
+                    .andReturn().getResponse().getContentAsString();
+
+            var page = new ObjectMapper().readTree(firstPage);
+            List<Integer> firstPageIds = List.of(page.get("bookings").get(0).get("id").asInt(), page.get("bookings").get(1).get("id").asInt());
+
+            mvc.perform(MockMvcRequestBuilders.get("/users/" + USER_ID + "/bookings")
+                            .param("limit", "2")
+                            .param("cursor", page.get("nextCursor").asText()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookings", not(empty())))
+                    .andExpect(jsonPath("$.bookings[*].id", everyItem(not(in(firstPageIds)))));
+        }
+
+        @Test
+        public void failsOnInvalidCursor() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/devices/4/bookings")
+                            .param("cursor", "not-a-cursor"))
+                    .andExpect(status().isBadRequest());
+        }
+
+        @Test
+        public void failsOnBookingsOfWrongUserId() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/users/999/bookings"))
+                    .andExpect(status().isNotFound());
+        }
+    }
+
+    @Nested
+    public class Stats {
+        @Test
+        public void rollUpBackfilledAndNewBookings() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.post("/admin/stats/backfill"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookings", greaterThanOrEqualTo(3)));
+
+            // Device #4 was booked for 15 minutes before the backfill
+            mvc.perform(MockMvcRequestBuilders.get("/devices/4/stats"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookingCount", is(1)))
+                    .andExpect(jsonPath("$.meanHoldMinutes", closeTo(15.0, 0.1)))
+                    .andExpect(jsonPath("$.currentStreakDays", is(1)));
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/13/book")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+            mvc.perform(MockMvcRequestBuilders.put("/devices/13/return"))
+                    .andExpect(status().isOk());
+
+            mvc.perform(MockMvcRequestBuilders.post("/admin/stats/flush"))
+                    .andExpect(status().isNoContent());
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/13/stats"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookingCount", is(1)))
+                    .andExpect(jsonPath("$.meanHoldMinutes", notNullValue()))
+                    .andExpect(jsonPath("$.daily", hasSize(1)));
+
+            mvc.perform(MockMvcRequestBuilders.get("/users/" + USER_ID + "/stats"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookingCount", greaterThanOrEqualTo(4)));
+        }
+
+        @Test
+        public void keepEventsReceivedDuringRebuild() throws Exception {
+            // Booked after the cutoff, so it's missing from the history read by the rebuild
+            usageStatsService.rebuild(cutoff -> {
+                try {
+                    mvc.perform(MockMvcRequestBuilders
+                                    .put("/devices/22/book")
+                                    .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                                    .contentType(MediaType.APPLICATION_JSON))
+                            .andExpect(status().isOk());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            mvc.perform(MockMvcRequestBuilders.post("/admin/stats/flush"))
+                    .andExpect(status().isNoContent());
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/22/stats"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.bookingCount", is(1)));
+        }
+
+        @Test
+        public void failsOnStatsOfWrongDeviceId() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/devices/999/stats"))
+                    .andExpect(status().isNotFound());
+        }
+    }
+
+    @Nested
+    public class FetchPlan {
+        private Statistics statistics;
+
+        @BeforeEach
+        public void setUp() {
+            statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        }
+
+        @Test
+        public void getInfoRunsASingleQueryOnACacheMiss() throws Exception {
+            // Loads the user into the second-level cache
+            mvc.perform(MockMvcRequestBuilders.get("/devices/2"))
+                    .andExpect(status().isOk());
+
+            entityManagerFactory.getCache().evict(Device.class, 2L);
+            statistics.clear();
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/2"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.name", is("Device #2")))
+                    .andExpect(jsonPath("$.latestBooking.userName", is(USER_NAME)));
+
+            assertEquals(1, statistics.getPrepareStatementCount());
+        }
+
+        @Test
+        public void getInfoRunsNoQueryOnACacheHit() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.get("/devices/4"))
+                    .andExpect(status().isOk());
+
+            statistics.clear();
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/4"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.latestBooking.userName", is(USER_NAME)))
+                    .andExpect(jsonPath("$.isAvailable", is(true)));
+
+            assertEquals(0, statistics.getPrepareStatementCount());
+        }
+
+        @Test
+        public void bookDeviceRunsAtMostThreeStatements() throws Exception {
+            // Loads the device and the user into the second-level cache
+            mvc.perform(MockMvcRequestBuilders.get("/devices/10"))
+                    .andExpect(status().isOk());
+            mvc.perform(MockMvcRequestBuilders.get("/devices/2"))
+                    .andExpect(status().isOk());
+
+            statistics.clear();
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/10/book")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.device.name", is("Device #10")))
+                    .andExpect(jsonPath("$.user.name", is(USER_NAME)));
+
+            // The booking and outbox inserts and the device update, ids come from pooled sequences
+            // so the occasional sequence call isn't counted
+            long roundTrips = statistics.getQueryExecutionCount()
+                    + statistics.getEntityInsertCount()
+                    + statistics.getEntityUpdateCount()
+                    + statistics.getEntityLoadCount();
+
+            assertTrue(roundTrips <= 3, "bookDevice took " + roundTrips + " round trips");
+            assertEquals(0, statistics.getEntityLoadCount());
+        }
+    }
+
+    @Nested
+    public class SecondLevelCache {
+        @Test
+        public void cacheDevicesAndUsers() throws Exception {
+            BookDeviceRequestBody requestBody = new BookDeviceRequestBody(USER_ID);
+
+            // Device #2 is booked, so the same device and user are resolved twice
+            for (int i = 0; i < 2; i++) {
+                mvc.perform(MockMvcRequestBuilders
+                                .put("/devices/2/book")
+                                .content(new ObjectMapper().writeValueAsString(requestBody))
+                                .contentType(MediaType.APPLICATION_JSON))
+                        .andExpect(status().isBadRequest());
+            }
+
+            mvc.perform(MockMvcRequestBuilders.get("/admin/caches"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$[*].region", hasItems("devices", "users")))
+                    .andExpect(jsonPath("$[?(@.region == 'devices')].hits", contains(greaterThanOrEqualTo(1))))
+                    .andExpect(jsonPath("$[?(@.region == 'users')].hits", contains(greaterThanOrEqualTo(1))));
+        }
+
+        @Test
+        public void evictCachedEntries() throws Exception {
+            // Device #2 is booked by user #1, so both are cached by its info
+            mvc.perform(MockMvcRequestBuilders.get("/devices/2"))
+                    .andExpect(status().isOk());
+            assertTrue(entityManagerFactory.getCache().contains(Device.class, 2L));
+            assertTrue(entityManagerFactory.getCache().contains(User.class, USER_ID));
+
+            mvc.perform(MockMvcRequestBuilders.delete("/admin/caches/devices/2"))
+                    .andExpect(status().isNoContent());
+            assertFalse(entityManagerFactory.getCache().contains(Device.class, 2L));
+            assertTrue(entityManagerFactory.getCache().contains(User.class, USER_ID));
+
+            mvc.perform(MockMvcRequestBuilders.delete("/admin/caches/users/1"))
+                    .andExpect(status().isNoContent());
+            assertFalse(entityManagerFactory.getCache().contains(User.class, USER_ID));
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/2"))
+                    .andExpect(status().isOk());
+            assertTrue(entityManagerFactory.getCache().contains(Device.class, 2L));
+
+            mvc.perform(MockMvcRequestBuilders.delete("/admin/caches"))
+                    .andExpect(status().isNoContent());
+            assertFalse(entityManagerFactory.getCache().contains(Device.class, 2L));
+            assertFalse(entityManagerFactory.getCache().contains(User.class, USER_ID));
+        }
+    }
+
+    @Nested
+    public class Reservations {
+        private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+        private MockHttpServletRequestBuilder reserve(Long userId, LocalDateTime startsAt, LocalDateTime endsAt) throws Exception {
+            return MockMvcRequestBuilders
+                    .post("/devices/16/reservations")
+                    .content(objectMapper.writeValueAsString(new ReserveDeviceRequestBody(userId, startsAt, endsAt)))
+                    .contentType(MediaType.APPLICATION_JSON);
+        }
+
+        @Test
+        public void reserveDeviceAndSearchAvailability() throws Exception {
+            // Starts within the 60 minutes of lead time of the tests
+            LocalDateTime startsAt = LocalDateTime.now().plus(30, ChronoUnit.MINUTES).truncatedTo(ChronoUnit.SECONDS);
+            LocalDateTime endsAt = startsAt.plus(2, ChronoUnit.HOURS);
+
+            mvc.perform(reserve(2L, startsAt, endsAt))
+                    .andExpect(status().isCreated())
+                    .andExpect(jsonPath("$.deviceId", is(16)))
+                    .andExpect(jsonPath("$.userId", is(2)));
+
+            mvc.perform(reserve(USER_ID, startsAt.plus(1, ChronoUnit.HOURS), endsAt.plus(1, ChronoUnit.HOURS)))
+                    .andExpect(status().isBadRequest());
+
+            // Back-to-back reservations don't overlap
+            String reservation = mvc.perform(reserve(USER_ID, endsAt, endsAt.plus(1, ChronoUnit.HOURS)))
+                    .andExpect(status().isCreated())
+                    .andReturn().getResponse().getContentAsString();
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/availability")
+                            .param("name", "device #16")
+                            .param("from", startsAt.plus(1, ChronoUnit.HOURS).toString())
+                            .param("to", endsAt.plus(2, ChronoUnit.HOURS).toString()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.devices", hasSize(0)));
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/availability")
+                            .param("name", "device #16")
+                            .param("from", endsAt.plus(1, ChronoUnit.HOURS).toString())
+                            .param("to", endsAt.plus(2, ChronoUnit.HOURS).toString()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.devices[*].id", contains(16)));
+
+            mvc.perform(MockMvcRequestBuilders.delete("/reservations/" + objectMapper.readTree(reservation).get("id").asLong()))
+                    .andExpect(status().isNoContent());
+
+            // Only the user who reserved the device can book it before the reservation
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/16/book")
+                            .content(objectMapper.writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isBadRequest());
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/16/book")
+                            .content(objectMapper.writeValueAsString(new BookDeviceRequestBody(2L)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+        }
+
+        @Test
+        public void failsOnReservationInThePast() throws Exception {
+            LocalDateTime startsAt = LocalDateTime.now().minus(1, ChronoUnit.HOURS);
+
+            mvc.perform(reserve(USER_ID, startsAt, startsAt.plus(2, ChronoUnit.HOURS)))
+                    .andExpect(status().isBadRequest());
+        }
+
+        @Test
+        public void failsOnCancelOfWrongReservationId() throws Exception {
+            mvc.perform(MockMvcRequestBuilders.delete("/reservations/999"))
+                    .andExpect(status().isNotFound());
+        }
+    }
+
+    @Nested
+    public class Reconciliation {
+        @Test
+        public void repairDriftInEveryDerivedColumn() {
+            Device bookedDevice = deviceRepository.findById(2L).orElseThrow();
+            LocalDateTime bookedAt = bookedDevice.getLatestBookedAt();
+            bookedDevice.setLatestBookedAt(bookedAt.minus(1, ChronoUnit.DAYS));
+            deviceRepository.save(bookedDevice);
+
+            Device availableDevice = deviceRepository.findById(4L).orElseThrow();
+            availableDevice.setLatestUser(userRepository.findById(2L).orElseThrow());
+            deviceRepository.save(availableDevice);
+
+            assertTrue(reconciliationJob.reconcile() >= 2);
+
+            assertEquals(bookedAt, deviceRepository.findById(2L).orElseThrow().getLatestBookedAt());
+            assertEquals(USER_ID, deviceRepository.findById(4L).orElseThrow().getLatestUser().getId());
+        }
+    }
+
+    @Nested
+    public class Expiry {
+        @Test
+        public void returnOverdueBookings() throws Exception {
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/15/book")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+
+            // Held for longer than the 60 minutes of the tests
+            Device device = deviceRepository.findById(15L).orElseThrow();
+            device.setLatestBookedAt(LocalDateTime.now().minus(2, ChronoUnit.HOURS));
+            deviceRepository.save(device);
+
+            double expired = meterRegistry.counter("bookings.expired").count();
+
+            assertEquals(1, bookingExpiryJob.expire());
+            assertEquals(expired + 1, meterRegistry.counter("bookings.expired").count());
+            assertEquals(0, meterRegistry.get("bookings.expiry.lag").gauge().value());
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/15"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.isAvailable", is(true)))
+                    .andExpect(jsonPath("$.latestBooking.returnedAt", notNullValue()));
+
+            // Devices #2 and #3 were booked recently
+            mvc.perform(MockMvcRequestBuilders.get("/devices/2"))
+                    .andExpect(jsonPath("$.isAvailable", is(false)));
+        }
+
+        @Test
+        public void returnOverdueBookingConcurrentlyWithItsUser() throws Exception {
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/21/book")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+
+            Device device = deviceRepository.findById(21L).orElseThrow();
+            device.setLatestBookedAt(LocalDateTime.now().minus(2, ChronoUnit.HOURS));
+            deviceRepository.save(device);
+
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                Future<Integer> expired = executor.submit(() -> {
+                    start.await();
+                    return bookingExpiryJob.expire();
+                });
+                Future<MvcResult> returned = executor.submit(() -> {
+                    start.await();
+                    return mvc.perform(MockMvcRequestBuilders.put("/devices/21/return")).andReturn();
+                });
+                start.countDown();
+
+                // Both lock the device before the booking, so neither deadlocks and exactly one of them returns it
+                int returnedByUser = returned.get().getResponse().getStatus() == 200 ? 1 : 0;
+                assertEquals(1, expired.get() + returnedByUser);
+            } finally {
+                executor.shutdownNow();
+            }
+
+            mvc.perform(MockMvcRequestBuilders.get("/devices/21"))
+                    .andExpect(jsonPath("$.isAvailable", is(true)));
+        }
+    }
+
+    @Nested
+    public class Outbox {
+        @Test
+        public void relayBookAndReturnEvents() throws Exception {
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/17/book")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+            mvc.perform(MockMvcRequestBuilders.put("/devices/17/return"))
+                    .andExpect(status().isOk());
+
+            assertEquals(2, outboxEventRepository.countByDeviceId(17L));
+
+            double relayed = meterRegistry.counter("outbox.relayed").count();
+
+            assertTrue(outboxRelay.relay() >= 2);
+            assertEquals(0, outboxEventRepository.countByDeviceId(17L));
+            assertTrue(meterRegistry.counter("outbox.relayed").count() >= relayed + 2);
+            assertEquals(0, meterRegistry.get("outbox.lag").gauge().value());
+        }
+    }
+
+    @Nested
+    public class RateLimits {
+        private MockHttpServletRequestBuilder waitFrom(String clientAddress) throws Exception {
+            return MockMvcRequestBuilders
+                    .put("/devices/999/wait")
+                    .with(request -> {
+                        request.setRemoteAddr(clientAddress);
+                        return request;
+                    })
+                    .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(999L)))
+                    .contentType(MediaType.APPLICATION_JSON);
+        }
+
+        @Test
+        public void limitRequestsPerClientAndPerUser() throws Exception {
+            // The tests allow 3 wait requests per client and per user
+            for (int i = 0; i < 3; i++) {
+                mvc.perform(waitFrom("10.0.0.1"))
+                        .andExpect(status().isNotFound());
+            }
+
+            mvc.perform(waitFrom("10.0.0.1"))
+                    .andExpect(status().isTooManyRequests())
+                    .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+
+            // Another client of the same user
+            mvc.perform(waitFrom("10.0.0.2"))
+                    .andExpect(status().isTooManyRequests())
+                    .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+
+            assertTrue(meterRegistry.counter("rate_limit.rejected", "route", "wait", "key", "user").count() >= 1);
+        }
+    }
+
+    @Nested
+    public class Metrics {
+        @Test
+        public void countBookingOutcomes() throws Exception {
+            double notFound = meterRegistry.counter("bookings.outcomes", "outcome", "not_found").count();
+
+            mvc.perform(MockMvcRequestBuilders
+                            .put("/devices/999/book")
+                            .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isNotFound());
+
+            assertEquals(notFound + 1, meterRegistry.counter("bookings.outcomes", "outcome", "not_found").count());
+        }
+
+        @Test
+        public void gaugeDevicesBooked() {
+            assertTrue(meterRegistry.get("devices.booked").gauge().value() >= 1);
+        }
+    }
+
+    @Nested
+    public class ConcurrentBookings {
+        private static final int THREADS = 16;
+        private static final int ATTEMPTS = 400;
+
+        @Test
+        public void onlyOneConcurrentBookingSucceeds(TestReporter testReporter) throws Exception {
+            String content = new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID));
+            CountDownLatch start = new CountDownLatch(1);
+
+            List<Callable<Integer>> attempts = new ArrayList<>();
+            for (int i = 0; i < ATTEMPTS; i++) {
+                attempts.add(() -> {
+                    start.await();
+
+                    MockHttpServletRequestBuilder request = MockMvcRequestBuilders
+                            .put("/devices/5/book")
+                            .content(content)
+                            .contentType(MediaType.APPLICATION_JSON);
+
+                    return mvc.perform(request).andReturn().getResponse().getStatus();
+                });
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                List<Future<Integer>> responses = new ArrayList<>();
+                for (Callable<Integer> attempt : attempts) {
+                    responses.add(executor.submit(attempt));
+                }
+
+                long startedAt = System.nanoTime();
+                start.countDown();
+
+                int booked = 0;
+                int rejected = 0;
+                for (Future<Integer> response : responses) {
+                    int status = response.get();
+                    if (status == 200) {
+                        booked++;
+                    } else if (status == 400) {
+                        rejected++;
+                    }
+                }
+
+                // Reported with the test results, to compare the throughput of the rejections between runs
+                Duration elapsed = Duration.ofNanos(System.nanoTime() - startedAt);
+                testReporter.publishEntry("elapsedMillis", String.valueOf(elapsed.toMillis()));
+                testReporter.publishEntry("attemptsPerSecond", String.valueOf(ATTEMPTS * 1_000_000_000L / Math.max(1, elapsed.toNanos())));
+
+                assertEquals(1, booked);
+                assertEquals(ATTEMPTS - 1, rejected);
+            } finally {
+                executor.shutdownNow();
+            }
+
+            long openBookings = bookingRepository.findAll().stream()
+                    .filter(booking -> booking.getDevice().getId().equals(5L) && booking.getReturnedAt() == null)
+                    .count();
+
+            assertEquals(1, openBookings);
+        }
+    }
 }
@@ -0,0 +1,148 @@
+package com.matheusfig90.controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.matheusfig90.controllers.requests.BookDeviceRequestBody;
+import com.matheusfig90.entity.Device;
+import com.matheusfig90.entity.User;
+import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.repository.UserRepository;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.servlet.http.Cookie;
+import net.ttddyy.dsproxy.support.ProxyDataSource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestPropertySource(properties = {
+        // A database of its own, so this context doesn't drop the schema of the unrouted one
+        "spring.datasource.url=jdbc:h2:mem:read_replicas",
+        // Same database as the primary, so the routing is exercised against the same data
+        "app.datasource.replica.url=jdbc:h2:mem:read_replicas",
+        "app.datasource.replica.read-your-writes-ms=5000",
+        // The JCache manager is shared by the contexts of the JVM, so the regions of this one are kept apart
+        "spring.jpa.properties.hibernate.cache.region_prefix=read_replicas",
+        "app.slow-query.threshold-ms=250"
+})
+public class ReadReplicasIntegrationTest {
+    private static final Long USER_ID = 1L;
+
+    // Pins the reads to the primary, the replica reads don't fill the second-level cache
+    private static final Cookie READ_PRIMARY = new Cookie("read-primary-until", String.valueOf(Long.MAX_VALUE));
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ApplicationContext context;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @BeforeAll
+    public void setUp() {
+        userRepository.save(User.builder()
+                .id(USER_ID)
+                .name("User #1")
+                .build());
+
+        // Device #1 is booked and returned to check the routing, device #2 is only read
+        deviceRepository.save(Device.builder()
+                .id(1L)
+                .name("Device #1")
+                .build());
+        deviceRepository.save(Device.builder()
+                .id(2L)
+                .name("Device #2")
+                .build());
+    }
+
+    @Test
+    public void readFromPrimaryAfterWriting() throws Exception {
+        double replicaConnections = routedConnections("replica");
+        mvc.perform(MockMvcRequestBuilders.get("/devices/1/bookings"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.bookings", hasSize(0)));
+        assertTrue(routedConnections("replica") > replicaConnections);
+
+        Cookie readPrimaryUntil = mvc.perform(MockMvcRequestBuilders
+                        .put("/devices/1/book")
+                        .content(new ObjectMapper().writeValueAsString(new BookDeviceRequestBody(USER_ID)))
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(cookie().exists("read-primary-until"))
+                .andExpect(cookie().httpOnly("read-primary-until", true))
+                .andReturn().getResponse().getCookie("read-primary-until");
+
+        double primaryConnections = routedConnections("primary");
+        mvc.perform(MockMvcRequestBuilders.get("/devices/1/bookings").cookie(readPrimaryUntil))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.bookings", hasSize(1)));
+        assertTrue(routedConnections("primary") > primaryConnections);
+
+        mvc.perform(MockMvcRequestBuilders.put("/devices/1/return").cookie(readPrimaryUntil))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void replicaReadsDoNotFillTheSecondLevelCache() throws Exception {
+        entityManagerFactory.getCache().evict(Device.class, 2L);
+
+        // A lagging replica row would be served from the cache to the next booking of the device
+        mvc.perform(MockMvcRequestBuilders.get("/devices/2"))
+                .andExpect(status().isOk());
+        assertFalse(entityManagerFactory.getCache().contains(Device.class, 2L));
+
+        mvc.perform(MockMvcRequestBuilders.get("/devices/2").cookie(READ_PRIMARY))
+                .andExpect(status().isOk());
+        assertTrue(entityManagerFactory.getCache().contains(Device.class, 2L));
+    }
+
+    @Test
+    public void countSlowStatementsOnce() {
+        // Only the routing data source is wrapped, the pools stay Hikari ones for the pool metrics
+        assertInstanceOf(ProxyDataSource.class, context.getBean("dataSource"));
+        assertInstanceOf(HikariDataSource.class, context.getBean("primaryDataSource"));
+        assertInstanceOf(HikariDataSource.class, context.getBean("replicaDataSource"));
+
+        jdbcTemplate.execute("CREATE ALIAS IF NOT EXISTS SLEEP FOR \"java.lang.Thread.sleep(long)\"");
+        double slow = meterRegistry.counter("db.queries.slow").count();
+
+        jdbcTemplate.execute("CALL SLEEP(300)");
+
+        assertEquals(slow + 1, meterRegistry.counter("db.queries.slow").count());
+    }
+
+    private double routedConnections(String target) {
+        return meterRegistry.counter("datasource.routed.connections", "target", target).count();
+    }
+}
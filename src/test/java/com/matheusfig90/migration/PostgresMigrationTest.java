@@ -0,0 +1,104 @@
+package com.matheusfig90.migration;
+
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import javax.sql.DataSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the Flyway migrations on PostgreSQL, which the H2 tests never execute: the partitioned bookings,
+ * the open_bookings trigger and the in-place migration of a schema created by Hibernate.
+ * Skipped when Docker isn't available.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+public class PostgresMigrationTest {
+    @Container
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    private DataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    public void setUp() {
+        dataSource = new DriverManagerDataSource(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword());
+        jdbcTemplate = new JdbcTemplate(dataSource);
+
+        jdbcTemplate.execute("DROP SCHEMA public CASCADE");
+        jdbcTemplate.execute("CREATE SCHEMA public");
+    }
+
+    @Test
+    public void migrateEmptyDatabase() {
+        migrate();
+
+        assertEquals(10, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM devices", Integer.class));
+
+        // The keyset pagination of the bookings of a device is backed by the whole key
+        String deviceIndex = jdbcTemplate.queryForObject(
+                "SELECT indexdef FROM pg_indexes WHERE tablename = 'bookings' AND indexname = 'idx_bookings_device_booked_at'", String.class);
+        assertTrue(deviceIndex.contains("(device_id, booked_at DESC, id DESC)"));
+
+        // The current month has its own partition, created by the migration, which receives the new bookings
+        String currentPartition = jdbcTemplate.queryForObject("SELECT 'bookings_' || to_char(CURRENT_DATE, 'YYYY_MM')", String.class);
+        jdbcTemplate.update("INSERT INTO bookings (id, device_id, user_id, booked_at, open_device_id) VALUES (1, 1, 1, now(), 1)");
+        assertEquals(currentPartition, jdbcTemplate.queryForObject("SELECT tableoid::regclass::text FROM bookings WHERE id = 1", String.class));
+
+        // The trigger keeps a single open booking per device
+        assertEquals(1L, jdbcTemplate.queryForObject("SELECT booking_id FROM open_bookings WHERE device_id = 1", Long.class));
+        DuplicateKeyException conflict = assertThrows(DuplicateKeyException.class, () -> jdbcTemplate.update(
+                "INSERT INTO bookings (id, device_id, user_id, booked_at, open_device_id) VALUES (2, 1, 2, now(), 1)"));
+        assertTrue(conflict.getMessage().contains("open_bookings_pkey"));
+
+        jdbcTemplate.update("UPDATE bookings SET returned_at = now(), open_device_id = NULL WHERE id = 1");
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM open_bookings", Integer.class));
+
+        jdbcTemplate.update("INSERT INTO bookings (id, device_id, user_id, booked_at, open_device_id) VALUES (2, 1, 2, now(), 1)");
+        assertEquals(2L, jdbcTemplate.queryForObject("SELECT booking_id FROM open_bookings WHERE device_id = 1", Long.class));
+    }
+
+    @Test
+    public void migrateSchemaCreatedByHibernate() {
+        jdbcTemplate.execute("CREATE TABLE devices (id bigint PRIMARY KEY, name varchar(60))");
+        jdbcTemplate.execute("CREATE TABLE users (id bigint PRIMARY KEY, name varchar(255))");
+        jdbcTemplate.execute("CREATE TABLE bookings (id bigint PRIMARY KEY, booked_at timestamp(6), returned_at timestamp(6), " +
+                "device_id bigint REFERENCES devices (id), user_id bigint REFERENCES users (id))");
+        jdbcTemplate.update("INSERT INTO devices (id, name) VALUES (1, 'Legacy device')");
+        jdbcTemplate.update("INSERT INTO users (id, name) VALUES (1, 'Legacy user')");
+
+        // Two open bookings of the same device, left by concurrent requests before the constraint existed
+        jdbcTemplate.update("INSERT INTO bookings (id, device_id, user_id, booked_at) VALUES (1, 1, 1, now() - interval '2 days')");
+        jdbcTemplate.update("INSERT INTO bookings (id, device_id, user_id, booked_at) VALUES (2, 1, 1, now() - interval '1 day')");
+        jdbcTemplate.update("INSERT INTO bookings (id, device_id, user_id, booked_at, returned_at) " +
+                "VALUES (3, 1, 1, now() - interval '3 days', now() - interval '3 days')");
+
+        migrate();
+
+        assertEquals(3, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM bookings", Integer.class));
+        assertEquals(2L, jdbcTemplate.queryForObject("SELECT booking_id FROM open_bookings WHERE device_id = 1", Long.class));
+        assertNotNull(jdbcTemplate.queryForObject("SELECT returned_at FROM bookings WHERE id = 1", Object.class));
+
+        // The latest booking is copied to the devices row
+        assertEquals(2L, jdbcTemplate.queryForObject("SELECT latest_booking_id FROM devices WHERE id = 1", Long.class));
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM pg_class WHERE relname = 'bookings_legacy'", Integer.class));
+    }
+
+    // Same settings as src/main/resources/application.properties
+    private void migrate() {
+        Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:db/migration")
+                .baselineOnMigrate(true)
+                .baselineVersion("0")
+                .load()
+                .migrate();
+    }
+}
@@ -0,0 +1,94 @@
+package com.matheusfig90.service;
+
+import com.matheusfig90.dto.DeviceEvent;
+import com.matheusfig90.dto.DeviceStatus;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeviceEventBroadcasterTest {
+    private final CountDownLatch clientReads = new CountDownLatch(1);
+    private final CountDownLatch sending = new CountDownLatch(1);
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    private MeterRegistry meterRegistry;
+    private DeviceEventBroadcaster broadcaster;
+
+    // A client which never reads: the send blocks, and so does the completion, like the emitter's write lock
+    private class StuckEmitter extends SseEmitter {
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            sending.countDown();
+            awaitClient();
+        }
+
+        @Override
+        public void complete() {
+            awaitClient();
+            completed.countDown();
+        }
+
+        private void awaitClient() {
+            try {
+                clientReads.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        broadcaster = new DeviceEventBroadcaster(meterRegistry) {
+            @Override
+            SseEmitter createEmitter(long timeoutMillis) {
+                return new StuckEmitter();
+            }
+        };
+        ReflectionTestUtils.setField(broadcaster, "bufferSize", 1);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        clientReads.countDown();
+        broadcaster.shutdown();
+    }
+
+    @Test
+    public void shouldNotBlockPublishingOnASlowSubscriber() throws InterruptedException {
+        broadcaster.subscribe(List.of());
+
+        // The first event is stuck in the send, the second one fills the buffer
+        broadcaster.publish(event());
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        broadcaster.publish(event());
+
+        // The third one overflows the buffer, the subscriber is dropped without waiting for the client
+        assertTimeoutPreemptively(Duration.ofSeconds(1), () -> broadcaster.publish(event()));
+        assertEquals(1, meterRegistry.counter("devices.events.dropped").count());
+        assertEquals(0, meterRegistry.get("devices.events.subscribers").gauge().value());
+
+        // Completed once the send gives up
+        clientReads.countDown();
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+    }
+
+    private static DeviceEvent event() {
+        LocalDateTime now = LocalDateTime.now();
+        return new DeviceEvent(1L, DeviceStatus.BOOKED, 1L, 1L, now, now);
+    }
+}
@@ -1,12 +1,17 @@
 package com.matheusfig90.service;
 
+import com.matheusfig90.dto.DeviceEvent;
 import com.matheusfig90.entity.Booking;
 import com.matheusfig90.entity.Device;
+import com.matheusfig90.entity.DeviceWaiter;
+import com.matheusfig90.entity.DeviceWaiter.Status;
 import com.matheusfig90.entity.User;
 import com.matheusfig90.exceptions.EntityNotFoundException;
 import com.matheusfig90.exceptions.UnavailableDeviceException;
 import com.matheusfig90.repository.BookingRepository;
 import com.matheusfig90.repository.DeviceRepository;
+import com.matheusfig90.repository.DeviceWaiterRepository;
+import com.matheusfig90.repository.ReservationRepository;
 import com.matheusfig90.repository.UserRepository;
 import com.matheusfig90.service.DeviceService.DeviceInfo;
 import org.junit.jupiter.api.BeforeEach;
@@ -14,6 +19,9 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
@@ -37,19 +45,31 @@ public class DeviceServiceTest {
             .name("User #1")
             .build();
 
+    private LocalDateTime bookedAt = LocalDateTime.now().minus(15, ChronoUnit.MINUTES);
+
+    private Device bookedDevice = device.toBuilder()
+            .latestBookingId(1L)
+            .latestUser(user)
+            .latestBookedAt(bookedAt)
+            .build();
+
+    private Device returnedDevice = bookedDevice.toBuilder()
+            .latestReturnedAt(LocalDateTime.now())
+            .build();
+
     Booking bookingWithoutReturn = Booking.builder()
             .id(1L)
-            .device(device)
+            .device(bookedDevice)
             .user(user)
-            .bookedAt(LocalDateTime.now().minus(15, ChronoUnit.MINUTES))
+            .bookedAt(bookedAt)
             .build();
 
     Booking bookingWithReturn = Booking.builder()
             .id(1L)
-            .device(device)
+            .device(returnedDevice)
             .user(user)
-            .bookedAt(LocalDateTime.now().minus(15, ChronoUnit.MINUTES))
-            .returnedAt(LocalDateTime.now())
+            .bookedAt(bookedAt)
+            .returnedAt(returnedDevice.getLatestReturnedAt())
             .build();
 
     @Mock
@@ -61,6 +81,15 @@ public class DeviceServiceTest {
     @Mock
     private UserRepository userRepository;
 
+    @Mock
+    private DeviceWaiterRepository deviceWaiterRepository;
+
+    @Mock
+    private ReservationRepository reservationRepository;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
     private DeviceService deviceService;
 
     @BeforeEach
@@ -68,7 +97,10 @@ public class DeviceServiceTest {
         deviceService = new DeviceService(
                 bookingRepository,
                 deviceRepository,
-                userRepository
+                userRepository,
+                deviceWaiterRepository,
+                reservationRepository,
+                eventPublisher
         );
     }
 
@@ -77,91 +109,290 @@ public class DeviceServiceTest {
         when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
         when(userRepository.findById(USER_ID)).thenReturn(Optional.of(user));
         when(bookingRepository.save(any())).thenReturn(bookingWithoutReturn);
-        when(bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(any())).thenReturn(Optional.empty());
 
         Booking bookingResponse = deviceService.bookDevice(DEVICE_ID, USER_ID);
 
         assertEquals(bookingResponse, bookingWithoutReturn);
+        assertEquals(bookingWithoutReturn.getId(), device.getLatestBookingId());
+        assertEquals(user, device.getLatestUser());
+        assertFalse(device.isAvailable());
 
         verify(bookingRepository, times(1)).save(any());
-        verify(deviceRepository, times(1)).findById(DEVICE_ID);
-        verify(userRepository, times(1)).findById(USER_ID);
+        verify(deviceRepository, times(1)).flush();
+        verify(eventPublisher, times(1)).publishEvent(DeviceEvent.booked(bookingWithoutReturn));
     }
 
     @Test
     public void shouldBookDeviceWhichWasReturned() throws EntityNotFoundException, UnavailableDeviceException {
-        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(returnedDevice));
         when(userRepository.findById(USER_ID)).thenReturn(Optional.of(user));
-        when(bookingRepository.save(any())).thenReturn(bookingWithoutReturn);
-        when(bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(any())).thenReturn(Optional.of(bookingWithReturn));
+        when(bookingRepository.save(any())).thenReturn(bookingWithoutReturn.toBuilder().id(2L).build());
 
         Booking bookingResponse = deviceService.bookDevice(DEVICE_ID, USER_ID);
 
-        assertEquals(bookingResponse, bookingWithoutReturn);
+        assertEquals(2L, bookingResponse.getId());
+        assertEquals(2L, returnedDevice.getLatestBookingId());
+        assertNull(returnedDevice.getLatestReturnedAt());
 
         verify(bookingRepository, times(1)).save(any());
-        verify(deviceRepository, times(1)).findById(DEVICE_ID);
-        verify(userRepository, times(1)).findById(USER_ID);
+        verify(deviceRepository, times(1)).flush();
     }
 
     @Test
     public void shouldFailOnBookingDeviceAlreadyBooked() {
-        when(bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(DEVICE_ID)).thenReturn(Optional.of(bookingWithoutReturn));
-        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(bookedDevice));
         when(userRepository.findById(USER_ID)).thenReturn(Optional.of(user));
 
-        assertThrows(UnavailableDeviceException.class, () -> deviceService.bookDevice(DEVICE_ID, USER_ID));
+        UnavailableDeviceException exception = assertThrows(UnavailableDeviceException.class, () -> deviceService.bookDevice(DEVICE_ID, USER_ID));
+
+        // Expected outcome, so no stack trace is captured for it
+        assertEquals(0, exception.getStackTrace().length);
+        verifyNoInteractions(bookingRepository);
+    }
+
+    @Test
+    public void shouldFailOnBookingDeviceReservedByAnotherUser() {
+        Device reservedDevice = device.toBuilder()
+                .reservedUntil(LocalDateTime.now().plus(2, ChronoUnit.HOURS))
+                .build();
+
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(reservedDevice));
+        when(userRepository.findById(USER_ID)).thenReturn(Optional.of(user));
+        when(reservationRepository.existsOverlappingOfOtherUsers(eq(DEVICE_ID), eq(USER_ID), any(), any())).thenReturn(true);
+
+        UnavailableDeviceException exception = assertThrows(UnavailableDeviceException.class, () -> deviceService.bookDevice(DEVICE_ID, USER_ID));
+
+        assertEquals("Device is reserved by another user", exception.getMessage());
+        verifyNoInteractions(bookingRepository);
+    }
+
+    @Test
+    public void shouldFailOnBookingDeviceWithWaitersSkippedByAReservation() {
+        Device reservedDevice = device.toBuilder()
+                .reservedUntil(LocalDateTime.now().minus(1, ChronoUnit.MINUTES))
+                .build();
+        DeviceWaiter waiter = DeviceWaiter.builder()
+                .id(1L)
+                .deviceId(DEVICE_ID)
+                .userId(2L)
+                .status(Status.WAITING)
+                .build();
+
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(reservedDevice));
+        when(userRepository.findById(USER_ID)).thenReturn(Optional.of(user));
+        when(deviceWaiterRepository.findFirstByDeviceIdAndStatusOrderByIdAsc(DEVICE_ID, Status.WAITING)).thenReturn(Optional.of(waiter));
+
+        UnavailableDeviceException exception = assertThrows(UnavailableDeviceException.class, () -> deviceService.bookDevice(DEVICE_ID, USER_ID));
+
+        assertEquals("Device is held for the users waiting for it, join the wait queue", exception.getMessage());
+        verifyNoInteractions(bookingRepository);
+    }
+
+    @Test
+    public void shouldBookDeviceWithWaitersForTheUserWhoReservedIt() throws EntityNotFoundException, UnavailableDeviceException {
+        Device reservedDevice = device.toBuilder()
+                .reservedUntil(LocalDateTime.now().plus(1, ChronoUnit.HOURS))
+                .build();
+        DeviceWaiter waiter = DeviceWaiter.builder()
+                .id(1L)
+                .deviceId(DEVICE_ID)
+                .userId(2L)
+                .status(Status.WAITING)
+                .build();
+
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(reservedDevice));
+        when(userRepository.findById(USER_ID)).thenReturn(Optional.of(user));
+        when(deviceWaiterRepository.findFirstByDeviceIdAndStatusOrderByIdAsc(DEVICE_ID, Status.WAITING)).thenReturn(Optional.of(waiter));
+        when(reservationRepository.existsOverlappingOfUser(eq(DEVICE_ID), eq(USER_ID), any(), any())).thenReturn(true);
+        when(bookingRepository.save(any())).thenReturn(bookingWithoutReturn);
+
+        assertEquals(bookingWithoutReturn, deviceService.bookDevice(DEVICE_ID, USER_ID));
     }
 
     @Test
     public void  shouldFailOnBookingDeviceWithDeviceIdOrUserIdInvalid() {
         Long invalidId = 999L;
 
-        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
         when(deviceRepository.findById(invalidId)).thenReturn(Optional.empty());
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
         when(userRepository.findById(invalidId)).thenReturn(Optional.empty());
 
-        assertThrows(EntityNotFoundException.class, () -> deviceService.bookDevice(invalidId, USER_ID));
-        assertThrows(EntityNotFoundException.class, () -> deviceService.bookDevice(DEVICE_ID, invalidId));
+        EntityNotFoundException deviceNotFound = assertThrows(EntityNotFoundException.class, () -> deviceService.bookDevice(invalidId, USER_ID));
+        EntityNotFoundException userNotFound = assertThrows(EntityNotFoundException.class, () -> deviceService.bookDevice(DEVICE_ID, invalidId));
+
+        assertEquals("Device not found", deviceNotFound.getMessage());
+        assertEquals("User not found", userNotFound.getMessage());
+    }
+
+    @Test
+    public void shouldFailOnBookingDeviceBookedConcurrently() {
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
+        when(userRepository.findById(USER_ID)).thenReturn(Optional.of(user));
+        when(bookingRepository.save(any())).thenReturn(bookingWithoutReturn);
+        doThrow(new DataIntegrityViolationException("uk_bookings_open_device")).when(deviceRepository).flush();
+
+        assertThrows(UnavailableDeviceException.class, () -> deviceService.bookDevice(DEVICE_ID, USER_ID));
+
+        verifyNoInteractions(eventPublisher);
+    }
+
+    @Test
+    public void shouldRethrowUnrelatedConstraintViolationOnBooking() {
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
+        when(userRepository.findById(USER_ID)).thenReturn(Optional.of(user));
+        when(bookingRepository.save(any())).thenReturn(bookingWithoutReturn);
+        doThrow(new DataIntegrityViolationException("fk_bookings_user")).when(deviceRepository).flush();
+
+        assertThrows(DataIntegrityViolationException.class, () -> deviceService.bookDevice(DEVICE_ID, USER_ID));
+
+        verifyNoInteractions(eventPublisher);
+    }
+
+    @Test
+    public void shouldFailOnBookingDeviceWithStaleVersion() {
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
+        when(userRepository.findById(USER_ID)).thenReturn(Optional.of(user));
+        when(bookingRepository.save(any())).thenReturn(bookingWithoutReturn);
+        doThrow(new ObjectOptimisticLockingFailureException(Device.class, DEVICE_ID)).when(deviceRepository).flush();
+
+        assertThrows(UnavailableDeviceException.class, () -> deviceService.bookDevice(DEVICE_ID, USER_ID));
     }
 
     @Test
     public void shouldReturnDevice() throws UnavailableDeviceException {
-        when(bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(DEVICE_ID)).thenReturn(Optional.of(bookingWithoutReturn));
-        when(bookingRepository.save(any())).thenReturn(bookingWithReturn);
+        when(deviceRepository.findLockedById(DEVICE_ID)).thenReturn(Optional.of(bookedDevice));
+        when(bookingRepository.markAsReturned(eq(bookingWithoutReturn.getId()), any())).thenReturn(1);
 
         Booking bookingResponse = deviceService.returnDevice(DEVICE_ID);
 
-        assertEquals(bookingResponse, bookingWithReturn);
+        assertEquals(bookingResponse.getId(), bookingWithoutReturn.getId());
+        assertEquals(bookingResponse.getUser(), user);
+        assertNotNull(bookingResponse.getReturnedAt());
+        assertTrue(bookedDevice.isAvailable());
 
-        verify(bookingRepository, times(1)).findTopByDeviceIdOrderByBookedAtDesc(DEVICE_ID);
-        verify(bookingRepository, times(1)).save(any());
+        verify(bookingRepository, times(1)).markAsReturned(eq(bookingWithoutReturn.getId()), any());
+        verify(eventPublisher, times(1)).publishEvent(DeviceEvent.returned(bookingResponse));
+        verify(deviceWaiterRepository, times(1)).findFirstByDeviceIdAndStatusOrderByIdAsc(DEVICE_ID, Status.WAITING);
+        verify(bookingRepository, never()).save(any());
+    }
+
+    @Test
+    public void shouldHandReturnedDeviceToTheNextWaiter() throws UnavailableDeviceException {
+        User waitingUser = User.builder()
+                .id(2L)
+                .name("User #2")
+                .build();
+        DeviceWaiter waiter = DeviceWaiter.builder()
+                .id(1L)
+                .deviceId(DEVICE_ID)
+                .userId(waitingUser.getId())
+                .status(Status.WAITING)
+                .build();
+
+        when(deviceRepository.findLockedById(DEVICE_ID)).thenReturn(Optional.of(bookedDevice));
+        when(bookingRepository.markAsReturned(eq(bookingWithoutReturn.getId()), any())).thenReturn(1);
+        when(deviceWaiterRepository.findFirstByDeviceIdAndStatusOrderByIdAsc(DEVICE_ID, Status.WAITING)).thenReturn(Optional.of(waiter));
+        when(userRepository.getReferenceById(waitingUser.getId())).thenReturn(waitingUser);
+        when(bookingRepository.save(any())).thenAnswer(invocation -> invocation.<Booking>getArgument(0).toBuilder().id(2L).build());
+
+        Booking bookingResponse = deviceService.returnDevice(DEVICE_ID);
+
+        assertEquals(bookingWithoutReturn.getId(), bookingResponse.getId());
+        assertNotNull(bookingResponse.getReturnedAt());
+
+        // Booked again, for the waiter
+        assertFalse(bookedDevice.isAvailable());
+        assertEquals(2L, bookedDevice.getLatestBookingId());
+        assertEquals(waitingUser, bookedDevice.getLatestUser());
+        assertEquals(Status.GRANTED, waiter.getStatus());
+        assertEquals(2L, waiter.getBookingId());
+
+        verify(eventPublisher, times(1)).publishEvent(waiter);
+    }
+
+    @Test
+    public void shouldKeepWaiterWaitingWhenDeviceIsReservedForAnotherUser() throws UnavailableDeviceException {
+        DeviceWaiter waiter = DeviceWaiter.builder()
+                .id(1L)
+                .deviceId(DEVICE_ID)
+                .userId(2L)
+                .status(Status.WAITING)
+                .build();
+        Device reservedDevice = bookedDevice.toBuilder()
+                .reservedUntil(LocalDateTime.now().plus(1, ChronoUnit.HOURS))
+                .build();
+
+        when(deviceRepository.findLockedById(DEVICE_ID)).thenReturn(Optional.of(reservedDevice));
+        when(bookingRepository.markAsReturned(eq(bookingWithoutReturn.getId()), any())).thenReturn(1);
+        when(deviceWaiterRepository.findFirstByDeviceIdAndStatusOrderByIdAsc(DEVICE_ID, Status.WAITING)).thenReturn(Optional.of(waiter));
+        when(reservationRepository.existsOverlappingOfOtherUsers(eq(DEVICE_ID), eq(2L), any(), any())).thenReturn(true);
+
+        deviceService.returnDevice(DEVICE_ID);
+
+        // Returned, but not booked for the waiter
+        assertTrue(reservedDevice.isAvailable());
+        assertEquals(Status.WAITING, waiter.getStatus());
+
+        verify(bookingRepository, never()).save(any());
+        verify(eventPublisher, never()).publishEvent(waiter);
+    }
+
+    @Test
+    public void shouldReportHandOffConflictOnReturn() {
+        DeviceWaiter waiter = DeviceWaiter.builder()
+                .id(1L)
+                .deviceId(DEVICE_ID)
+                .userId(2L)
+                .status(Status.WAITING)
+                .build();
+
+        when(deviceRepository.findLockedById(DEVICE_ID)).thenReturn(Optional.of(bookedDevice));
+        when(bookingRepository.markAsReturned(eq(bookingWithoutReturn.getId()), any())).thenReturn(1);
+        when(deviceWaiterRepository.findFirstByDeviceIdAndStatusOrderByIdAsc(DEVICE_ID, Status.WAITING)).thenReturn(Optional.of(waiter));
+        when(bookingRepository.save(any())).thenAnswer(invocation -> invocation.<Booking>getArgument(0).toBuilder().id(2L).build());
+
+        // The return is flushed, the booking of the waiter conflicts
+        doNothing()
+                .doThrow(new DataIntegrityViolationException("Unique index or primary key violation: \"PUBLIC.UK_BOOKINGS_OPEN_DEVICE\""))
+                .when(deviceRepository).flush();
+
+        UnavailableDeviceException exception = assertThrows(UnavailableDeviceException.class, () -> deviceService.returnDevice(DEVICE_ID));
+        assertTrue(exception.getMessage().contains("handed off"));
+    }
+
+    @Test
+    public void shouldFailOnReturnDeviceReturnedConcurrently() {
+        when(deviceRepository.findLockedById(DEVICE_ID)).thenReturn(Optional.of(bookedDevice));
+        when(bookingRepository.markAsReturned(eq(bookingWithoutReturn.getId()), any())).thenReturn(0);
+
+        assertThrows(UnavailableDeviceException.class, () -> deviceService.returnDevice(DEVICE_ID));
+
+        verify(deviceRepository, never()).flush();
     }
 
     @Test
     public void shouldFailOnReturnDeviceAlreadyReturned() {
-        when(bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(DEVICE_ID)).thenReturn(Optional.of(bookingWithReturn));
+        when(deviceRepository.findLockedById(DEVICE_ID)).thenReturn(Optional.of(returnedDevice));
 
         assertThrows(UnavailableDeviceException.class, () -> deviceService.returnDevice(DEVICE_ID));
 
-        verify(bookingRepository, times(1)).findTopByDeviceIdOrderByBookedAtDesc(DEVICE_ID);
+        verifyNoInteractions(bookingRepository);
     }
 
     @Test
     public void shouldFailOnReturningDeviceWithDeviceIdInvalid() {
         Long invalidId = 999L;
 
-        when(bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(invalidId)).thenReturn(Optional.empty());
+        when(deviceRepository.findLockedById(invalidId)).thenReturn(Optional.empty());
 
         assertThrows(UnavailableDeviceException.class, () -> deviceService.returnDevice(invalidId));
     }
 
     @Test
     public void shouldFetchInfoFromAvailableDevice() throws EntityNotFoundException {
-        DeviceInfo expectedDeviceInfo = new DeviceInfo(device, bookingWithReturn, true);
+        DeviceInfo expectedDeviceInfo = new DeviceInfo(returnedDevice, bookingWithReturn, true);
 
-        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
-        when(bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(DEVICE_ID)).thenReturn(Optional.of(bookingWithReturn));
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(returnedDevice));
 
         DeviceInfo deviceInfoResponse = deviceService.getInfo(DEVICE_ID);
 
@@ -170,14 +401,16 @@ public class DeviceServiceTest {
 
     @Test
     public void shouldFetchInfoFromUnavailableDevice() throws EntityNotFoundException {
-        DeviceInfo expectedDeviceInfo = new DeviceInfo(device, bookingWithoutReturn, false);
+        DeviceInfo expectedDeviceInfo = new DeviceInfo(bookedDevice, bookingWithoutReturn, false);
 
-        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
-        when(bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(DEVICE_ID)).thenReturn(Optional.of(bookingWithoutReturn));
+        when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(bookedDevice));
 
         DeviceInfo deviceInfoResponse = deviceService.getInfo(DEVICE_ID);
 
         assertEquals(deviceInfoResponse, expectedDeviceInfo);
+
+        // The availability comes from the devices row, not from the booking history
+        verifyNoInteractions(bookingRepository);
     }
 
     @Test
@@ -185,7 +418,6 @@ public class DeviceServiceTest {
         DeviceInfo expectedDeviceInfo = new DeviceInfo(device, null, true);
 
         when(deviceRepository.findById(DEVICE_ID)).thenReturn(Optional.of(device));
-        when(bookingRepository.findTopByDeviceIdOrderByBookedAtDesc(DEVICE_ID)).thenReturn(Optional.empty());
 
         DeviceInfo deviceInfoResponse = deviceService.getInfo(DEVICE_ID);
 